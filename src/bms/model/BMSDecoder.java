@@ -1,12 +1,14 @@
 package bms.model;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.charset.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.logging.Logger;
@@ -21,11 +23,7 @@ import bms.model.TimeLineTreeMap.TimeLineEntry;
  */
 public class BMSDecoder extends ChartDecoder {
 
-	final List<String> wavlist = new ArrayList<String>(62 * 62);
-	private final int[] wm = new int[62 * 62];
-
-	final List<String> bgalist = new ArrayList<String>(62 * 62);
-	private final int[] bm = new int[62 * 62];
+	private static final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
 
 	public BMSDecoder() {
 		this(BMSModel.LNTYPE_LONGNOTE);
@@ -39,14 +37,14 @@ public class BMSDecoder extends ChartDecoder {
 	public BMSModel decode(Path f) {
 		Logger.getGlobal().fine("BMSファイル解析開始 :" + f.toString());
 		try {
-			BMSModel model = this.decode(f, Files.readAllBytes(f), f.toString().toLowerCase().endsWith(".pms"), null);
+			BMSModel model = this.decode(f, ByteBuffer.wrap(Files.readAllBytes(f)), f.toString().toLowerCase().endsWith(".pms"), null, lntype);
 			if (model == null) {
 				return null;
 			}
 			Logger.getGlobal().fine("BMSファイル解析完了 :" + f.toString() + " - TimeLine数:" + model.getAllTimes().length);
 			return model;
 		} catch (IOException e) {
-			log.add(new DecodeLog(ERROR, "BMSファイルが見つかりません"));
+			setDecodeLog(Collections.singletonList(new DecodeLog(ERROR, "BMSファイルが見つかりません")));
 			Logger.getGlobal().severe("BMSファイル解析中の例外 : " + e.getClass().getName() + " - " + e.getMessage());
 		}
 		return null;
@@ -54,29 +52,36 @@ public class BMSDecoder extends ChartDecoder {
 	
 	public BMSModel decode(ChartInformation info) {
 		try {
-			this.lntype = info.lntype;
-			return decode(info.path, Files.readAllBytes(info.path), info.path.toString().toLowerCase().endsWith(".pms"), info.selectedRandoms);
+			return decode(info.path, ByteBuffer.wrap(Files.readAllBytes(info.path)), info.path.toString().toLowerCase().endsWith(".pms"), info.selectedRandoms, info.lntype);
 		} catch (IOException e) {
-			log.add(new DecodeLog(ERROR, "BMSファイルが見つかりません"));
+			setDecodeLog(Collections.singletonList(new DecodeLog(ERROR, "BMSファイルが見つかりません")));
 			Logger.getGlobal().severe("BMSファイル解析中の例外 : " + e.getClass().getName() + " - " + e.getMessage());
 		}
 		return null;
 	}
 
 
-	private final List<String>[] lines = new List[1000];
-
-	private final IntDoubleTreeMap scrolltable = new IntDoubleTreeMap();
-	private final IntDoubleTreeMap stoptable = new IntDoubleTreeMap();
-	private final IntDoubleTreeMap bpmtable = new IntDoubleTreeMap();
-	private final IntDoubleTreeMap speedtable = new IntDoubleTreeMap();
-	private final Deque<Integer> randoms = new ArrayDeque<Integer>();
-	private final Deque<Integer> srandoms = new ArrayDeque<Integer>();
-	private final Deque<Integer> crandom = new ArrayDeque<Integer>();
-	private final Deque<Boolean> skip = new ArrayDeque<Boolean>();
-	
 	private static final CommandWord[] commandWords = CommandWord.values();
 
+	/**
+	 * フォルダごとの文字コード推測結果のキャッシュ。nullの場合は譜面ごとに推測する
+	 */
+	private EncodingHintCache encodingHintCache;
+
+	public EncodingHintCache getEncodingHintCache() {
+		return encodingHintCache;
+	}
+
+	/**
+	 * 一括デコード時に使用する文字コード推測結果のキャッシュを設定する
+	 *
+	 * @param encodingHintCache
+	 *            キャッシュ。nullの場合はキャッシュを使用しない
+	 */
+	public void setEncodingHintCache(EncodingHintCache encodingHintCache) {
+		this.encodingHintCache = encodingHintCache;
+	}
+
 	/**
 	 * 指定したBMSファイルをモデルにデコードする
 	 *
@@ -84,7 +89,12 @@ public class BMSDecoder extends ChartDecoder {
 	 * @return
 	 */
 	public BMSModel decode(byte[] data, boolean ispms, int[] random) {
-		return this.decode(null, data, ispms, random);
+		return this.decode(null, ByteBuffer.wrap(data), ispms, random, lntype);
+	}
+
+	public BMSModel decode(ChartInformation info, ByteBuffer data) {
+		return decode(info.path, data, info.path != null && info.path.toString().toLowerCase().endsWith(".pms"),
+				info.selectedRandoms, info.lntype);
 	}
 	
 	/**
@@ -93,392 +103,560 @@ public class BMSDecoder extends ChartDecoder {
 	 * @param data
 	 * @return
 	 */
-	private BMSModel decode(Path path, byte[] data, boolean ispms, int[] selectedRandom) {
-		log.clear();
-		final long time = System.currentTimeMillis();
-		BMSModel model = new BMSModel();
-		scrolltable.clear();
-		stoptable.clear();
-		bpmtable.clear();
+	private BMSModel decode(Path path, ByteBuffer data, boolean ispms, int[] selectedRandom, int lntype) {
+		final Context ctx = contexts.get();
+		ctx.reset(lntype);
+		try {
+			final BMSSource source = compile(ctx, path, data);
+			return source != null ? decode(ctx, path, source, ispms, selectedRandom) : null;
+		} finally {
+			ctx.release();
+			setDecodeLog(ctx.log);
+		}
+	}
 
-		MessageDigest md5digest, sha256digest;
+	/**
+	 * 解析済みのBMSファイルから、指定の乱数の選択値でモデルを生成する
+	 *
+	 * @param selectedRandom
+	 *            各#RANDOMの選択値。nullの場合は乱数で決定する
+	 */
+	BMSModel decode(Path path, BMSSource source, boolean ispms, int[] selectedRandom) {
+		final Context ctx = contexts.get();
+		ctx.reset(lntype);
 		try {
-			md5digest = MessageDigest.getInstance("MD5");
-			sha256digest = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e1) {
-			e1.printStackTrace();
-			return null;
+			return decode(ctx, path, source, ispms, selectedRandom);
+		} finally {
+			ctx.release();
+			setDecodeLog(ctx.log);
 		}
+	}
 
-		String encoding = "MS932";
-		// Detect the Encoding
+	private BMSModel decode(Context ctx, Path path, BMSSource source, boolean ispms, int[] selectedRandom) {
+		final List<DecodeLog> log = ctx.log;
+		log.clear();
+		final long time = System.currentTimeMillis();
+		BMSModel model = new BMSModel();
 		try {
-			encoding = detectEncoding(data, Math.min(data.length, 1024 * 64));
+			final Section[] sections = parse(ctx, model, source, ispms, selectedRandom);
+
+			final LongNote[] lnendstatus = new LongNote[model.getMode().key];
+			final TimeLineTreeMap timelines = makeTimeLines(ctx, model, sections, lnendstatus, false);
+			// Logger.getGlobal().info(
+			// "Section生成時間(ms) :" + (System.currentTimeMillis() - time));
+			final TimeLine[] tl = model.getAllTimeLines();
+
+			if(tl[0].getBPM() == 0) {
+				log.add(new DecodeLog(ERROR, "開始BPMが定義されていないため、BMS解析に失敗しました"));
+				Logger.getGlobal().severe(path + ":BMSファイル解析失敗: 開始BPMが定義されていません");
+				return null;
+			}
+
+			removeUnterminatedLongNotes(log, timelines, lnendstatus);
+
+			if (model.getTotalType() != BMSModel.TotalType.BMS) {
+				log.add(new DecodeLog(WARNING, "TOTALが未定義です"));
+			}
+			if (model.getTotal() <= 60.0) {
+				log.add(new DecodeLog(WARNING, "TOTAL値が少なすぎます"));
+			}
+			if (tl.length > 0) {
+				if (tl[tl.length - 1].getTime() >= model.getLastTime() + 30000) {
+					log.add(new DecodeLog(WARNING, "最後のノート定義から30秒以上の余白があります"));
+				}
+			}
+			if (model.getPlayer() > 1 && (model.getMode() == Mode.BEAT_5K || model.getMode() == Mode.BEAT_7K)) {
+				log.add(new DecodeLog(WARNING, "#PLAYER定義が2以上にもかかわらず2P側のノーツ定義が一切ありません"));
+			}
+			if (model.getPlayer() == 1 && (model.getMode() == Mode.BEAT_10K || model.getMode() == Mode.BEAT_14K)) {
+				log.add(new DecodeLog(WARNING, "#PLAYER定義が1にもかかわらず2P側のノーツ定義が存在します"));
+			}
+			log.add(new DecodeLog(INFO, "#PLAYER定義が1にもかかわらず2P側のノーツ定義が存在します"));
+			Logger.getGlobal().fine("BMSデータ解析時間(ms) :" + (System.currentTimeMillis() - time));
+
+			model.setChartInformation(new ChartInformation(path, ctx.lntype, getSelectedRandom(ctx, selectedRandom)));
+			// 統計値はデコード時に算出しておく
+			model.getStatistics();
+			printLog(path, log);
+			return model;
 		} catch (Exception e) {
 			log.add(new DecodeLog(ERROR, "何らかの異常によりBMS解析に失敗しました"));
 			Logger.getGlobal()
 					.severe(path + ":BMSファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
 			e.printStackTrace();
-			return null;
 		}
-		
-		// ファイルの最後まで読んで先に #BASE を確定することが必須
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data),encoding))) {
-			String line = null;
-			
-			while ((line = br.readLine()) != null) {
-				if (line.length() < 2) {
-					continue;
-				}
-				if(line.charAt(0) == '#') {
-					if (matchesReserveWord(line, "BASE")) {
-						if (line.charAt(5) == ' ') {
-							try {
-								final String arg = line.substring(6).trim();
-								int base = Integer.parseInt(arg);
-								if(base != 62 && base != 36 ) {
-									model.setBase(36);
-									log.add(new DecodeLog(WARNING, "#BASEに無効な数字が定義されています"));
-								} else {
-									model.setBase(base);
-								}
-							} catch (NumberFormatException e) {
-								model.setBase(36);
-								log.add(new DecodeLog(WARNING, "#BASEに数字が定義されていません"));
-							}
-						}
-					}
-				}
-			}	
+		return null;
+	}
+
+	/**
+	 * 指定したBMSファイルのハッシュ値とヘッダ情報のみをデコードする。BGノート、BGA、レイヤーを配置せずにTimeLineを生成するため、
+	 * 総ノート数とBPMの範囲はdecodeの結果と一致する
+	 *
+	 * @param info
+	 *            譜面情報
+	 * @return ヘッダ情報。デコードに失敗した場合はnull
+	 */
+	public ChartHeader decodeHeader(ChartInformation info) {
+		try {
+			return decodeHeader(info.path, ByteBuffer.wrap(Files.readAllBytes(info.path)),
+					info.path.toString().toLowerCase().endsWith(".pms"), info.selectedRandoms, info.lntype);
 		} catch (IOException e) {
-			model.setBase(36);
-			log.add(new DecodeLog(ERROR, "BMSファイルへのアクセスに失敗しました"));
+			setDecodeLog(Collections.singletonList(new DecodeLog(ERROR, "BMSファイルが見つかりません")));
+			Logger.getGlobal().severe("BMSファイル解析中の例外 : " + e.getClass().getName() + " - " + e.getMessage());
+		}
+		return null;
+	}
+
+	private ChartHeader decodeHeader(Path path, ByteBuffer data, boolean ispms, int[] selectedRandom, int lntype) {
+		final Context ctx = contexts.get();
+		ctx.reset(lntype);
+		try {
+			final BMSSource source = compile(ctx, path, data);
+			return source != null ? decodeHeader(ctx, path, source, ispms, selectedRandom) : null;
+		} finally {
+			ctx.release();
+			setDecodeLog(ctx.log);
+		}
+	}
+
+	private ChartHeader decodeHeader(Context ctx, Path path, BMSSource source, boolean ispms, int[] selectedRandom) {
+		final List<DecodeLog> log = ctx.log;
+		log.clear();
+		BMSModel model = new BMSModel();
+		try {
+			final Section[] sections = parse(ctx, model, source, ispms, selectedRandom);
+
+			final LongNote[] lnendstatus = new LongNote[model.getMode().key];
+			final TimeLineTreeMap timelines = makeTimeLines(ctx, model, sections, lnendstatus, true);
+			if (model.getAllTimeLines()[0].getBPM() == 0) {
+				log.add(new DecodeLog(ERROR, "開始BPMが定義されていないため、BMS解析に失敗しました"));
+				Logger.getGlobal().severe(path + ":BMSファイル解析失敗: 開始BPMが定義されていません");
+				return null;
+			}
+			removeUnterminatedLongNotes(log, timelines, lnendstatus);
+
+			model.setChartInformation(new ChartInformation(path, ctx.lntype, getSelectedRandom(ctx, selectedRandom)));
+			return new ChartHeader(model);
+		} catch (Exception e) {
+			log.add(new DecodeLog(ERROR, "何らかの異常によりBMS解析に失敗しました"));
 			Logger.getGlobal()
 					.severe(path + ":BMSファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
 			e.printStackTrace();
 		}
-		
-		int maxsec = 0;
-		// BMS読み込み、ハッシュ値取得
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(
-				new DigestInputStream(new DigestInputStream(new ByteArrayInputStream(data), md5digest), sha256digest),
-				encoding));) {
-			model.setMode(ispms ? Mode.POPN_9K : Mode.BEAT_5K);
-			// Logger.getGlobal().info(
-			// "BMSデータ読み込み時間(ms) :" + (System.currentTimeMillis() - time));
-
-			String line = null;
-			wavlist.clear();
-			Arrays.fill(wm, -2);
-			bgalist.clear();
-			Arrays.fill(bm, -2);
-			for (List<String> l : lines) {
-				if (l != null) {
-					l.clear();
+		return null;
+	}
+
+	/**
+	 * SectionからTimeLineを生成し、BMSModelに登録する
+	 *
+	 * @param lnendstatus
+	 *            終端が定義されていないLNの格納先
+	 * @param notesonly
+	 *            演奏ノートのみを配置する場合はtrue
+	 * @return 生成したTimeLine
+	 */
+	private static TimeLineTreeMap makeTimeLines(Context ctx, BMSModel model, Section[] sections, LongNote[] lnendstatus,
+			boolean notesonly) {
+		final TimeLineTreeMap timelines = new TimeLineTreeMap();
+		final LongNoteIntervals[] lnlist = new LongNoteIntervals[model.getMode().key];
+		final TimeLine[] lastNoteTimeLine = new TimeLine[model.getMode().key];
+		final TimeLine basetl = new TimeLine(0, 0, model.getMode().key);
+		basetl.setBPM(model.getBpm());
+		timelines.put(0.0, 0.0, basetl);
+		for (Section section : sections) {
+			section.makeTimeLines(ctx.wm, ctx.bm, timelines, lnlist, lnendstatus, lastNoteTimeLine, notesonly);
+		}
+		final TimeLine[] tl = new TimeLine[timelines.size()];
+		for (int i = 0; i < timelines.size(); i++) {
+			tl[i] = timelines.valueAt(i).timeline;
+		}
+		model.setAllTimeLine(tl);
+		return timelines;
+	}
+
+	/**
+	 * 曲の終端までに終端が定義されていないLNの開始ノートを除去する
+	 */
+	private static void removeUnterminatedLongNotes(List<DecodeLog> log, TimeLineTreeMap timelines, LongNote[] lnendstatus) {
+		for (int i = 0; i < lnendstatus.length; i++) {
+			if (lnendstatus[i] != null) {
+				log.add(new DecodeLog(WARNING, "曲の終端までにLN終端定義されていないLNがあります。lane:" + (i + 1)));
+				if(lnendstatus[i].getSection() != Double.MIN_VALUE) {
+					TimeLineEntry tlc = timelines.get(lnendstatus[i].getSection());
+					if(tlc != null) {
+						tlc.timeline.setNote(i,  null);
+					}
 				}
 			}
+		}
+	}
 
-			randoms.clear();
-			srandoms.clear();
-			crandom.clear();
+	/**
+	 * BMSファイルを解析する。ハッシュ値の算出、文字コード変換を行い、#RANDOM制御系と#BASEを解釈して
+	 * それ以外の行を最も内側の#IFの条件とともに記録する。
+	 *
+	 * @return 解析したBMSファイル。失敗した場合はnull
+	 */
+	BMSSource compile(Path path, ByteBuffer data) {
+		final Context ctx = contexts.get();
+		ctx.reset(lntype);
+		try {
+			return compile(ctx, path, data);
+		} finally {
+			ctx.release();
+			setDecodeLog(ctx.log);
+		}
+	}
 
-			skip.clear();
-			while ((line = br.readLine()) != null) {
+	private BMSSource compile(Context ctx, Path path, ByteBuffer data) {
+		final List<DecodeLog> log = ctx.log;
+		log.clear();
+		try {
+			// Detect the Encoding
+			final int length = Math.min(data.remaining(), 1024 * 64);
+			final String encoding = detectEncoding(ctx, path, sample(data, length), length);
+
+			// BMS読み込み、ハッシュ値取得
+			final String[] hash = computeHash(data, true);
+
+			// 文字コード変換は一度だけ行い、以降は文字バッファ上のオフセットで行を扱う
+			final CharBuffer chars = Charset.forName(encoding).decode(data.duplicate());
+			final BMSTokenizer line = new BMSTokenizer(chars.array(), chars.limit());
+
+			final List<DecodeLog> logs = new ArrayList<DecodeLog>();
+			int base = 0;
+			int[] randoms = new int[16];
+			int randomCount = 0;
+			int[] lines = new int[3072];
+			int lineCount = 0;
+			int[] conditions = new int[32];
+			int conditionCount = 0;
+			// 有効な#RANDOMのインデックス
+			final Deque<Integer> crandom = new ArrayDeque<Integer>();
+			// 有効な#IFの条件のインデックス
+			final Deque<Integer> skip = new ArrayDeque<Integer>();
+			while (line.nextLine()) {
 				if (line.length() < 2) {
 					continue;
 				}
 
 				if(line.charAt(0) == '#') {
-					// line = line.substring(1, line.length());
 					// RANDOM制御系
-					if (matchesReserveWord(line, "RANDOM")) {
+					if (line.matchesReserveWord("RANDOM")) {
 						try {
-							final int r = Integer.parseInt(line.substring(8).trim());
-							randoms.add(r);
-							if (selectedRandom != null) {
-								crandom.add(selectedRandom[randoms.size() - 1]);
-							} else {
-								crandom.add((int) (Math.random() * r) + 1);
-								srandoms.add(crandom.getLast());
+							final int r = line.parseInt(8);
+							if (randomCount == randoms.length) {
+								randoms = Arrays.copyOf(randoms, randomCount * 2);
 							}
+							randoms[randomCount] = r;
+							crandom.add(randomCount++);
 						} catch (NumberFormatException e) {
-							log.add(new DecodeLog(WARNING, "#RANDOMに数字が定義されていません"));
+							logs.add(new DecodeLog(WARNING, "#RANDOMに数字が定義されていません"));
 						}
-					} else if (matchesReserveWord(line, "IF")) {
+					} else if (line.matchesReserveWord("IF")) {
 						// RANDOM分岐開始
 						if(!crandom.isEmpty()) {
 							try {
-								skip.add((crandom.getLast() != Integer.parseInt(line.substring(4).trim())));
+								final int value = line.parseInt(4);
+								if (conditionCount * 2 == conditions.length) {
+									conditions = Arrays.copyOf(conditions, conditions.length * 2);
+								}
+								conditions[conditionCount * 2] = crandom.getLast();
+								conditions[conditionCount * 2 + 1] = value;
+								skip.add(conditionCount++);
 							} catch (NumberFormatException e) {
-								log.add(new DecodeLog(WARNING, "#IFに数字が定義されていません"));
+								logs.add(new DecodeLog(WARNING, "#IFに数字が定義されていません"));
 							}
 						} else {
-							log.add(new DecodeLog(WARNING, "#IFに対応する#RANDOMが定義されていません"));
+							logs.add(new DecodeLog(WARNING, "#IFに対応する#RANDOMが定義されていません"));
 						}
-					} else if (matchesReserveWord(line, "ENDIF")) {
+					} else if (line.matchesReserveWord("ENDIF")) {
 						if (!skip.isEmpty()) {
 							skip.removeLast();
 						} else {
-							log.add(new DecodeLog(WARNING, "ENDIFに対応するIFが存在しません: " + line));
+							logs.add(new DecodeLog(WARNING, "ENDIFに対応するIFが存在しません: " + line.line()));
 						}
-					} else if (matchesReserveWord(line, "ENDRANDOM")) {
+					} else if (line.matchesReserveWord("ENDRANDOM")) {
 						if (!crandom.isEmpty()) {
 							crandom.removeLast();
 						} else {
-							log.add(new DecodeLog(WARNING, "ENDRANDOMに対応するRANDOMが存在しません: " + line));
+							logs.add(new DecodeLog(WARNING, "ENDRANDOMに対応するRANDOMが存在しません: " + line.line()));
 						}
-					} else if (skip.isEmpty() || !skip.getLast()) {
-						final char c = line.charAt(1);
-						final int base = model.getBase();
-						if ('0' <= c && c <= '9' && line.length() > 6) {
-							// line = line.toUpperCase();
-							// 楽譜
-							final char c2 = line.charAt(2);
-							final char c3 = line.charAt(3);
-							if ('0' <= c2 && c2 <= '9' && '0' <= c3 && c3 <= '9') {
-								final int bar_index = (c - '0') * 100 + (c2 - '0') * 10 + (c3 - '0');
-								List<String> l = lines[bar_index];
-								if (l == null) {
-									l = lines[bar_index] = new ArrayList<String>();
-								}
-								l.add(line);
-								maxsec = (maxsec > bar_index) ? maxsec : bar_index;
-							} else {
-								log.add(new DecodeLog(WARNING, "小節に数字が定義されていません : " + line));
-							}
-						} else if (matchesReserveWord(line, "BPM")) {
-							if (line.charAt(4) == ' ') {
-								// BPMは小数点のケースがある(FREEDOM DiVE)
-								try {
-									final String arg = line.substring(5).trim();
-									double bpm = Double.parseDouble(arg);
-									if(bpm > 0) {
-										model.setBpm(bpm);
-									} else {
-										log.add(new DecodeLog(WARNING, "#negative BPMはサポートされていません : " + line));
-									}
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#BPMに数字が定義されていません : " + line));
-								}
-							} else {
-								try {
-									double bpm = Double.parseDouble(line.substring(7).trim());
-									if(bpm > 0) {
-										if(base == 62) {
-											bpmtable.put(ChartDecoder.parseInt62(line, 4), bpm);
-										} else {
-											bpmtable.put(ChartDecoder.parseInt36(line, 4), bpm);
-										}
-									} else {
-										log.add(new DecodeLog(WARNING, "#negative BPMはサポートされていません : " + line));
-									}
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#BPMxxに数字が定義されていません : " + line));
-								}
-							}
-						} else if (matchesReserveWord(line, "WAV")) {
-							// 音源ファイル
-							if (line.length() >= 8) {
-								try {
-									final String file_name = line.substring(7).trim().replace('\\', '/');
-									if(base == 62) {
-										wm[ChartDecoder.parseInt62(line, 4)] = wavlist.size();
-									} else {
-										wm[ChartDecoder.parseInt36(line, 4)] = wavlist.size();
-									}
-									wavlist.add(file_name);
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#WAVxxは不十分な定義です : " + line));
-								}
-							} else {
-								log.add(new DecodeLog(WARNING, "#WAVxxは不十分な定義です : " + line));
-							}
-						} else if (matchesReserveWord(line, "BMP")) {
-							// BGAファイル
-							if (line.length() >= 8) {
-								try {
-									final String file_name = line.substring(7).trim().replace('\\', '/');
-									if(base == 62) {
-										bm[ChartDecoder.parseInt62(line, 4)] = bgalist.size();
-									} else {
-										bm[ChartDecoder.parseInt36(line, 4)] = bgalist.size();
-									}
-									bgalist.add(file_name);
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#BMPxxは不十分な定義です : " + line));
-								}
-							} else {
-								log.add(new DecodeLog(WARNING, "#BMPxxは不十分な定義です : " + line));
-							}
-						} else if (matchesReserveWord(line, "STOP")) {
-							if (line.length() >= 9) {
-								try {
-									double stop = Double.parseDouble(line.substring(8).trim()) / 192;
-									if(stop < 0) {
-										stop = Math.abs(stop);
-										log.add(new DecodeLog(WARNING, "#negative STOPはサポートされていません : " + line));
-									}
-									if(base == 62) {
-										stoptable.put(ChartDecoder.parseInt62(line, 5), stop);
-									} else {
-										stoptable.put(ChartDecoder.parseInt36(line, 5), stop);
-									}
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#STOPxxに数字が定義されていません : " + line));
-								}
-							} else {
-								log.add(new DecodeLog(WARNING, "#STOPxxは不十分な定義です : " + line));
-							}
-						} else if (matchesReserveWord(line, "SCROLL")) {
-							if (line.length() >= 11) {
-								try {
-									double scroll = Double.parseDouble(line.substring(10).trim());
-									if(base == 62) {
-										scrolltable.put(ChartDecoder.parseInt62(line, 7), scroll);
-									} else {
-										scrolltable.put(ChartDecoder.parseInt36(line, 7), scroll);
-									}
-								} catch (NumberFormatException e) {
-									log.add(new DecodeLog(WARNING, "#SCROLLxxに数字が定義されていません : " + line));
-								}
-							} else {
-								log.add(new DecodeLog(WARNING, "#SCROLLxxは不十分な定義です : " + line));
-							}
-						} else {
-							for (CommandWord cw : commandWords) {
-								if (line.length() > cw.name().length() + 2 && matchesReserveWord(line, cw.name())) {
-									DecodeLog log = cw.function.apply(model, line.substring(cw.name().length() + 2).trim());
-									if (log != null) {
-										this.log.add(log);
-										Logger.getGlobal().warning(model.getTitle() + " - " + log.getMessage() + " : " + line);
-									}
-									break;
+					} else if (line.matchesReserveWord("BASE")) {
+						// #BASEはRANDOM分岐に関係なく、ファイル全体で最後の定義が有効
+						if (line.length() > 6 && line.charAt(5) == ' ') {
+							try {
+								base = line.parseInt(6);
+								if(base != 62 && base != 36 ) {
+									base = 36;
+									logs.add(new DecodeLog(WARNING, "#BASEに無効な数字が定義されています"));
 								}
+							} catch (NumberFormatException e) {
+								base = 36;
+								logs.add(new DecodeLog(WARNING, "#BASEに数字が定義されていません"));
 							}
 						}
+					} else {
+						if (lineCount * 3 == lines.length) {
+							lines = Arrays.copyOf(lines, lines.length * 2);
+						}
+						lines[lineCount * 3] = line.start();
+						lines[lineCount * 3 + 1] = line.length();
+						lines[lineCount * 3 + 2] = skip.isEmpty() ? -1 : skip.getLast();
+						lineCount++;
 					}
-				} else if(line.charAt(0) == '%') {
-					final int index = line.indexOf(' ');
-					if(index > 0 && line.length() > index + 1) {
-						model.getValues().put(line.substring(1, index), line.substring(index + 1));
-					}
-				} else if(line.charAt(0) == '@') {
-					final int index = line.indexOf(' ');
-					if(index > 0 && line.length() > index + 1) {
-						model.getValues().put(line.substring(1, index), line.substring(index + 1));
+				} else if(line.charAt(0) == '%' || line.charAt(0) == '@') {
+					// RANDOM分岐に関係なく有効
+					if (lineCount * 3 == lines.length) {
+						lines = Arrays.copyOf(lines, lines.length * 2);
 					}
+					lines[lineCount * 3] = line.start();
+					lines[lineCount * 3 + 1] = line.length();
+					lines[lineCount * 3 + 2] = -1;
+					lineCount++;
 				}
 			}
-			
-			model.setWavList(wavlist.toArray(new String[wavlist.size()]));
-			model.setBgaList(bgalist.toArray(new String[bgalist.size()]));
-
-			Section prev = null;
-			Section[] sections = new Section[maxsec + 1];
-			for (int i = 0; i <= maxsec; i++) {
-				sections[i] = new Section(model, prev, lines[i] != null ? lines[i] : Collections.EMPTY_LIST, bpmtable,
-						stoptable, scrolltable, speedtable, log);
-				prev = sections[i];
-			}
+			return new BMSSource(hash[0], hash[1], chars.array(), base, logs.toArray(new DecodeLog[logs.size()]),
+					Arrays.copyOf(randoms, randomCount), lines, lineCount,
+					Arrays.copyOf(conditions, conditionCount * 2));
+		} catch (Exception e) {
+			log.add(new DecodeLog(ERROR, "何らかの異常によりBMS解析に失敗しました"));
+			Logger.getGlobal()
+					.severe(path + ":BMSファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
+			e.printStackTrace();
+		}
+		return null;
+	}
 
-			final TimeLineTreeMap timelines = new TimeLineTreeMap();
-			final List<LongNote>[] lnlist = new List[model.getMode().key];
-			LongNote[] lnendstatus = new LongNote[model.getMode().key];
-			TimeLine[] lastNoteTimeLine = new TimeLine[model.getMode().key];
-			final TimeLine basetl = new TimeLine(0, 0, model.getMode().key);
-			basetl.setBPM(model.getBpm());
-			timelines.put(0.0, 0.0, basetl);
-			for (Section section : sections) {
-				section.makeTimeLines(wm, bm, timelines, lnlist, lnendstatus, lastNoteTimeLine);
-			}
-			// Logger.getGlobal().info(
-			// "Section生成時間(ms) :" + (System.currentTimeMillis() - time));
-			TimeLine[] tl = new TimeLine[timelines.size()];
-			int tlcount = 0;
-			for(int i = 0; i < timelines.size(); i++) {
-				TimeLineEntry tlc = timelines.valueAt(i);
-				tl[tlcount] = tlc.timeline;
-				tlcount++;
-			}
-			model.setAllTimeLine(tl);
+	/**
+	 * 解析済みのBMSファイルの有効な行について、ヘッダ・定義行の解釈、Sectionの生成までを行う
+	 */
+	private Section[] parse(Context ctx, BMSModel model, BMSSource source, boolean ispms, int[] selectedRandom) {
+		ctx.scrolltable.clear();
+		ctx.stoptable.clear();
+		ctx.bpmtable.clear();
 
-			if(tl[0].getBPM() == 0) {
-				log.add(new DecodeLog(ERROR, "開始BPMが定義されていないため、BMS解析に失敗しました"));
-				Logger.getGlobal().severe(path + ":BMSファイル解析失敗: 開始BPMが定義されていません");
-				return null;
+		ctx.log.addAll(Arrays.asList(source.logs));
+		model.setMD5(source.md5);
+		model.setSHA256(source.sha256);
+		model.setMode(ispms ? Mode.POPN_9K : Mode.BEAT_5K);
+		if (source.base != 0) {
+			model.setBase(source.base);
+		}
+
+		// 各#RANDOMの値を決定する
+		final int[] values = new int[source.getRandomCount()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = selectedRandom != null ? selectedRandom[i] : (int) (Math.random() * source.getRandom(i)) + 1;
+		}
+		ctx.srandom = values;
+
+		int maxsec = 0;
+		final BMSTokenizer line = new BMSTokenizer(source.chars, source.chars.length);
+		ctx.wavlist.clear();
+		Arrays.fill(ctx.wm, -2);
+		ctx.bgalist.clear();
+		Arrays.fill(ctx.bm, -2);
+		final ChannelEventStore channels = ctx.channels;
+		channels.reset(source.chars);
+
+		int[] definitions = ctx.definitions;
+		int definitionCount = 0;
+		for (int i = 0; i < source.getLineCount(); i++) {
+			if (!source.isActive(i, values)) {
+				continue;
 			}
+			line.setLine(source.getLineStart(i), source.getLineLength(i));
 
-			for (int i = 0; i < lnendstatus.length; i++) {
-				if (lnendstatus[i] != null) {
-					log.add(new DecodeLog(WARNING, "曲の終端までにLN終端定義されていないLNがあります。lane:" + (i + 1)));
-					if(lnendstatus[i].getSection() != Double.MIN_VALUE) {
-						TimeLineEntry tlc = timelines.get(lnendstatus[i].getSection());
-						if(tlc != null) {
-							tlc.timeline.setNote(i,  null);
+			if(line.charAt(0) == '#') {
+				final char c = line.charAt(1);
+				if ('0' <= c && c <= '9' && line.length() > 6) {
+					// 楽譜
+					final char c2 = line.charAt(2);
+					final char c3 = line.charAt(3);
+					if ('0' <= c2 && c2 <= '9' && '0' <= c3 && c3 <= '9') {
+						final int bar_index = (c - '0') * 100 + (c2 - '0') * 10 + (c3 - '0');
+						channels.add(bar_index, line.start(), line.length());
+						maxsec = (maxsec > bar_index) ? maxsec : bar_index;
+					} else {
+						ctx.log.add(new DecodeLog(WARNING, "小節に数字が定義されていません : " + line.line()));
+					}
+				} else if (line.matchesReserveWord("BPM") && line.charAt(4) == ' ') {
+					// BPMは小数点のケースがある(FREEDOM DiVE)
+					try {
+						double bpm = line.parseDouble(5);
+						if(bpm > 0) {
+							model.setBpm(bpm);
+						} else {
+							ctx.log.add(new DecodeLog(WARNING, "#negative BPMはサポートされていません : " + line.line()));
+						}
+					} catch (NumberFormatException e) {
+						ctx.log.add(new DecodeLog(WARNING, "#BPMに数字が定義されていません : " + line.line()));
+					}
+				} else if (line.matchesReserveWord("BPM") || line.matchesReserveWord("WAV")
+						|| line.matchesReserveWord("BMP") || line.matchesReserveWord("STOP")
+						|| line.matchesReserveWord("SCROLL") || line.matchesReserveWord("LNOBJ")) {
+					// 進数に依存する定義は#BASE確定後に解釈する
+					if (definitionCount * 2 == definitions.length) {
+						definitions = Arrays.copyOf(definitions, definitions.length * 2);
+					}
+					definitions[definitionCount * 2] = line.start();
+					definitions[definitionCount * 2 + 1] = line.length();
+					definitionCount++;
+				} else {
+					for (CommandWord cw : commandWords) {
+						if (line.length() > cw.name().length() + 2 && line.matchesReserveWord(cw.name())) {
+							DecodeLog log = cw.function.apply(model, line.string(cw.name().length() + 2));
+							if (log != null) {
+								ctx.log.add(log);
+								Logger.getGlobal().warning(model.getTitle() + " - " + log.getMessage() + " : " + line.line());
+							}
+							break;
 						}
 					}
 				}
+			} else {
+				final int index = line.indexOf(' ');
+				if(index > 0 && line.length() > index + 1) {
+					model.getValues().put(line.substring(1, index), line.substring(index + 1, line.length()));
+				}
 			}
+		}
+		
+		ctx.definitions = definitions;
+		// #BASE確定後に定義を解釈する
+		for (int i = 0; i < definitionCount; i++) {
+			line.setLine(definitions[i * 2], definitions[i * 2 + 1]);
+			processDefinition(ctx, model, line);
+		}
+		model.setWavList(ctx.wavlist.toArray(new String[ctx.wavlist.size()]));
+		model.setBgaList(ctx.bgalist.toArray(new String[ctx.bgalist.size()]));
 
-			if (model.getTotalType() != BMSModel.TotalType.BMS) {
-				log.add(new DecodeLog(WARNING, "TOTALが未定義です"));
+		Section prev = null;
+		Section[] sections = new Section[maxsec + 1];
+		channels.sort(maxsec);
+		for (int i = 0; i <= maxsec; i++) {
+			sections[i] = new Section(model, prev, channels, i, ctx.bpmtable, ctx.stoptable, ctx.scrolltable,
+					ctx.speedtable, ctx.log);
+			prev = sections[i];
+		}
+
+		return sections;
+	}
+
+	private static int[] getSelectedRandom(Context ctx, int[] selectedRandom) {
+		return selectedRandom != null ? selectedRandom : ctx.srandom;
+	}
+
+	/**
+	 * #BASEに依存する定義行(#BPMxx, #WAVxx, #BMPxx, #STOPxx, #SCROLLxx, #LNOBJ)を解釈する
+	 */
+	private static void processDefinition(Context ctx, BMSModel model, BMSTokenizer line) {
+		final int base = model.getBase();
+		if (line.matchesReserveWord("BPM")) {
+			try {
+				double bpm = line.parseDouble(7);
+				if(bpm > 0) {
+					if(base == 62) {
+						ctx.bpmtable.put(line.parseInt62(4), bpm);
+					} else {
+						ctx.bpmtable.put(line.parseInt36(4), bpm);
+					}
+				} else {
+					ctx.log.add(new DecodeLog(WARNING, "#negative BPMはサポートされていません : " + line.line()));
+				}
+			} catch (NumberFormatException e) {
+				ctx.log.add(new DecodeLog(WARNING, "#BPMxxに数字が定義されていません : " + line.line()));
 			}
-			if (model.getTotal() <= 60.0) {
-				log.add(new DecodeLog(WARNING, "TOTAL値が少なすぎます"));
+		} else if (line.matchesReserveWord("WAV")) {
+			// 音源ファイル
+			if (line.length() >= 8) {
+				try {
+					final String file_name = line.string(7).replace('\\', '/');
+					if(base == 62) {
+						ctx.wm[line.parseInt62(4)] = ctx.wavlist.size();
+					} else {
+						ctx.wm[line.parseInt36(4)] = ctx.wavlist.size();
+					}
+					ctx.wavlist.add(file_name);
+				} catch (NumberFormatException e) {
+					ctx.log.add(new DecodeLog(WARNING, "#WAVxxは不十分な定義です : " + line.line()));
+				}
+			} else {
+				ctx.log.add(new DecodeLog(WARNING, "#WAVxxは不十分な定義です : " + line.line()));
 			}
-			if (tl.length > 0) {
-				if (tl[tl.length - 1].getTime() >= model.getLastTime() + 30000) {
-					log.add(new DecodeLog(WARNING, "最後のノート定義から30秒以上の余白があります"));
+		} else if (line.matchesReserveWord("BMP")) {
+			// BGAファイル
+			if (line.length() >= 8) {
+				try {
+					final String file_name = line.string(7).replace('\\', '/');
+					if(base == 62) {
+						ctx.bm[line.parseInt62(4)] = ctx.bgalist.size();
+					} else {
+						ctx.bm[line.parseInt36(4)] = ctx.bgalist.size();
+					}
+					ctx.bgalist.add(file_name);
+				} catch (NumberFormatException e) {
+					ctx.log.add(new DecodeLog(WARNING, "#BMPxxは不十分な定義です : " + line.line()));
 				}
+			} else {
+				ctx.log.add(new DecodeLog(WARNING, "#BMPxxは不十分な定義です : " + line.line()));
 			}
-			if (model.getPlayer() > 1 && (model.getMode() == Mode.BEAT_5K || model.getMode() == Mode.BEAT_7K)) {
-				log.add(new DecodeLog(WARNING, "#PLAYER定義が2以上にもかかわらず2P側のノーツ定義が一切ありません"));
+		} else if (line.matchesReserveWord("STOP")) {
+			if (line.length() >= 9) {
+				try {
+					double stop = line.parseDouble(8) / 192;
+					if(stop < 0) {
+						stop = Math.abs(stop);
+						ctx.log.add(new DecodeLog(WARNING, "#negative STOPはサポートされていません : " + line.line()));
+					}
+					if(base == 62) {
+						ctx.stoptable.put(line.parseInt62(5), stop);
+					} else {
+						ctx.stoptable.put(line.parseInt36(5), stop);
+					}
+				} catch (NumberFormatException e) {
+					ctx.log.add(new DecodeLog(WARNING, "#STOPxxに数字が定義されていません : " + line.line()));
+				}
+			} else {
+				ctx.log.add(new DecodeLog(WARNING, "#STOPxxは不十分な定義です : " + line.line()));
 			}
-			if (model.getPlayer() == 1 && (model.getMode() == Mode.BEAT_10K || model.getMode() == Mode.BEAT_14K)) {
-				log.add(new DecodeLog(WARNING, "#PLAYER定義が1にもかかわらず2P側のノーツ定義が存在します"));
+		} else if (line.matchesReserveWord("SCROLL")) {
+			if (line.length() >= 11) {
+				try {
+					double scroll = line.parseDouble(10);
+					if(base == 62) {
+						ctx.scrolltable.put(line.parseInt62(7), scroll);
+					} else {
+						ctx.scrolltable.put(line.parseInt36(7), scroll);
+					}
+				} catch (NumberFormatException e) {
+					ctx.log.add(new DecodeLog(WARNING, "#SCROLLxxに数字が定義されていません : " + line.line()));
+				}
+			} else {
+				ctx.log.add(new DecodeLog(WARNING, "#SCROLLxxは不十分な定義です : " + line.line()));
 			}
-			model.setMD5(convertHexString(md5digest.digest()));
-			model.setSHA256(convertHexString(sha256digest.digest()));
-			log.add(new DecodeLog(INFO, "#PLAYER定義が1にもかかわらず2P側のノーツ定義が存在します"));
-			Logger.getGlobal().fine("BMSデータ解析時間(ms) :" + (System.currentTimeMillis() - time));
-
-			if (selectedRandom == null) {
-				selectedRandom = new int[srandoms.size()];
-				final Iterator<Integer> ri = srandoms.iterator();
-				for (int i = 0; i < selectedRandom.length; i++) {
-					selectedRandom[i] = ri.next();
+		} else if (line.matchesReserveWord("LNOBJ")) {
+			if (line.length() > 7) {
+				final DecodeLog log = CommandWord.LNOBJ.function.apply(model, line.string(7));
+				if (log != null) {
+					ctx.log.add(log);
+					Logger.getGlobal().warning(model.getTitle() + " - " + log.getMessage() + " : " + line.line());
 				}
 			}
-			
-			model.setChartInformation(new ChartInformation(path, lntype, selectedRandom));
-			printLog(path);
-			return model;
-		} catch (IOException e) {
-			log.add(new DecodeLog(ERROR, "BMSファイルへのアクセスに失敗しました"));
-			Logger.getGlobal()
-					.severe(path + ":BMSファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
-		} catch (Exception e) {
-			log.add(new DecodeLog(ERROR, "何らかの異常によりBMS解析に失敗しました"));
-			Logger.getGlobal()
-					.severe(path + ":BMSファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
-			e.printStackTrace();
 		}
-		return null;
 	}
 
-	private boolean matchesReserveWord(String line, String s) {
-		final int len = s.length();
-		if (line.length() <= len) {
-			return false;
-		}
-		for (int i = 0; i < len; i++) {
-			final char c = line.charAt(i + 1);
-			final char c2 = s.charAt(i);
-			if (c != c2 && c != c2 + 32) {
-				return false;
-			}
+	/**
+	 * 文字コード判定用に先頭lengthバイトを取得する。ヒープ上の配列であれば複製しない
+	 */
+	private static byte[] sample(ByteBuffer data, int length) {
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.limit() == data.array().length) {
+			return data.array();
 		}
-		return true;
+		final byte[] sample = new byte[length];
+		data.duplicate().get(sample);
+		return sample;
 	}
 
 	/**
@@ -558,57 +736,330 @@ public class BMSDecoder extends ChartDecoder {
     	return encodingFromGarbled(bytes, bytes.length);
     }
 
-    public String encodingFromGarbled(byte[] bytes, int length) {
-        List<Charset> encodingsToTry = new ArrayList<>();
-        encodingsToTry.add(Charset.forName("EUC-KR")); // 韓国語環境のBMSEが出力するため2010年以前にしばしば見られた
-        encodingsToTry.add(Charset.forName("MS932")); // SHIFT-JIS
-        encodingsToTry.add(Charset.forName("UTF-8")); // UTF-8
-        encodingsToTry.add(Charset.forName("UTF-16BE")); // UTF-16BE
-        encodingsToTry.add(Charset.forName("UTF-16LE")); // UTF-16LE
-        encodingsToTry.add(Charset.forName("UTF-32BE")); // UTF-32BE
-        encodingsToTry.add(Charset.forName("UTF-32LE")); // UTF-32LE
-        // ここに同じように追加すれば対応Charsetをいくらでも増やせるけど、
-        // 他の本体が対応できないためUTFのみにした方がよさそう。
-        
-        for (Charset encoding : encodingsToTry) {
-            try {
-                // バイト列を文字列にデコードする
-                String decodedString = new String(bytes, 0, length, encoding);
-
-                if (!(decodedString.contains("\r\n") || decodedString.contains("\r") || decodedString.contains("\n") || decodedString.contains("#"))) {
-                	// BMSファイル特有のチェック条件: 改行コードと"#"がないことはありえない
-                	continue; 
+    /**
+     * 文字化け判定を試行するCharset。この順番で最初にラウンドトリップ変換が一致したものを採用する
+     */
+    private static final Charset[] GARBLED_CHARSETS = {
+            Charset.forName("EUC-KR"), // 韓国語環境のBMSEが出力するため2010年以前にしばしば見られた
+            Charset.forName("MS932"), // SHIFT-JIS
+            StandardCharsets.UTF_8,
+            StandardCharsets.UTF_16BE,
+            StandardCharsets.UTF_16LE,
+            Charset.forName("UTF-32BE"),
+            Charset.forName("UTF-32LE")
+            // ここに同じように追加すれば対応Charsetをいくらでも増やせるけど、
+            // 他の本体が対応できないためUTFのみにした方がよさそう。
+    };
+    private static final int EUC_KR = 0;
+    private static final int MS932 = 1;
+    private static final int UTF_8 = 2;
+
+    /**
+     * 不一致の位置がこれより末尾に近い場合は、ラウンドトリップ変換で判定する
+     */
+    private static final int GARBLED_TAIL_MARGIN = 16;
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * 1バイト文字、2バイト文字ごとのラウンドトリップ変換の一致表。
+     * 初回使用時にCharsetの変換結果から作成する
+     */
+    private static final class RoundTripTable {
+
+        static final RoundTripTable EUC_KR = new RoundTripTable(GARBLED_CHARSETS[BMSDecoder.EUC_KR]);
+        static final RoundTripTable MS932 = new RoundTripTable(GARBLED_CHARSETS[BMSDecoder.MS932]);
+
+        private final boolean[] single = new boolean[256];
+        private final long[] pair = new long[65536 / 64];
+        /**
+         * ASCII文字が全て1バイトで一致するかどうか
+         */
+        private final boolean ascii;
+
+        private RoundTripTable(Charset charset) {
+            boolean ascii = true;
+            for (int b = 0; b < 256; b++) {
+                single[b] = matchesRoundTrip(charset, new byte[] { (byte) b });
+                if (b < 0x80) {
+                    ascii &= single[b];
+                }
+            }
+            this.ascii = ascii;
+            for (int b1 = 0; b1 < 256; b1++) {
+                if (single[b1]) {
+                    continue;
                 }
+                for (int b2 = 0; b2 < 256; b2++) {
+                    if (matchesRoundTrip(charset, new byte[] { (byte) b1, (byte) b2 })) {
+                        pair[(b1 << 2) | (b2 >> 6)] |= 1L << b2;
+                    }
+                }
+            }
+        }
 
-                byte[] newBytes = decodedString.getBytes(encoding);
-                int correctCount = 0;
-                int compareLength = Math.min(length, newBytes.length);
+        private static boolean matchesRoundTrip(Charset charset, byte[] bytes) {
+            final String s = new String(bytes, charset);
+            return s.codePointCount(0, s.length()) == 1 && Arrays.equals(bytes, s.getBytes(charset));
+        }
 
-                // Byte列を比較して一致する連続個数をカウント
-               for (int i = 0; i < compareLength; i++) {
-                    if (bytes[i] == newBytes[i]) {
-                    	correctCount++;
-                    } else {
-                    	break;
+        /**
+         * 先頭から1文字ずつ一致を調べる
+         *
+         * @return 最初に一致しない文字の位置。全て一致する場合は-1
+         */
+        int mismatch(byte[] bytes, int length) {
+            int i = 0;
+            while (i < length) {
+                if (ascii) {
+                    i = skipAscii(bytes, i, length);
+                    if (i == length) {
+                        break;
                     }
                 }
-                
-                // 連続で閾値以上一致するなら、正しいエンコーディングと推測する。
-                // 末端に4バイト未満の欠落や文字化けが発生しうることを考慮
-                if (correctCount > length - 4) {
-                    return encoding.name();
+                final int b1 = bytes[i] & 0xff;
+                if (single[b1]) {
+                    i++;
+                    continue;
+                }
+                if (i + 1 == length) {
+                    return i;
+                }
+                final int b2 = bytes[i + 1] & 0xff;
+                if ((pair[(b1 << 2) | (b2 >> 6)] & (1L << b2)) == 0) {
+                    return i;
+                }
+                i += 2;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * EUC-KR, MS932, UTF-8について、ラウンドトリップ変換が最初に不一致となる位置を調べる
+     *
+     * @return 不一致となる位置。全て一致する場合は-1
+     */
+    private static int mismatch(int index, byte[] bytes, int length) {
+        return switch (index) {
+            case EUC_KR -> RoundTripTable.EUC_KR.mismatch(bytes, length);
+            case MS932 -> RoundTripTable.MS932.mismatch(bytes, length);
+            default -> mismatchUTF8(bytes, length);
+        };
+    }
+
+    /**
+     * ASCII文字が続く範囲を8バイト単位で読み飛ばす
+     */
+    private static int skipAscii(byte[] bytes, int i, int length) {
+        while (i + 8 <= length && ((long) LONG_VIEW.get(bytes, i) & 0x8080808080808080L) == 0) {
+            i += 8;
+        }
+        while (i < length && bytes[i] >= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * UTF-8として冗長表現、サロゲートを含まない厳密な判定を行う
+     *
+     * @return 最初の不正なバイト列の位置。全て正しい場合は-1
+     */
+    private static int mismatchUTF8(byte[] bytes, int length) {
+        int i = 0;
+        while (i < length) {
+            i = skipAscii(bytes, i, length);
+            if (i == length) {
+                break;
+            }
+            final int b = bytes[i] & 0xff;
+            final int trail;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                trail = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                trail = 2;
+                min = b == 0xE0 ? 0xA0 : 0x80;
+                max = b == 0xED ? 0x9F : 0xBF;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                trail = 3;
+                min = b == 0xF0 ? 0x90 : 0x80;
+                max = b == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                return i;
+            }
+            if (i + trail >= length) {
+                return i;
+            }
+            for (int j = 1; j <= trail; j++) {
+                final int c = bytes[i + j] & 0xff;
+                if (c < min || c > max) {
+                    return i;
                 }
+                min = 0x80;
+                max = 0xBF;
+            }
+            i += trail + 1;
+        }
+        return -1;
+    }
 
-            } catch (Exception e) {
-                // その他のエラー
-                continue;
+    /**
+     * UTF-16/32で、境界に揃った位置に改行コードか'#'が存在するかを調べる
+     *
+     * @param unit 1文字のバイト数
+     * @param bigEndian ビッグエンディアンかどうか
+     */
+    private static boolean containsMarker(byte[] bytes, int length, int unit, boolean bigEndian) {
+        for (int i = 0; i + unit <= length; i += unit) {
+            final int low = bigEndian ? i + unit - 1 : i;
+            final byte b = bytes[low];
+            if (b == '\n' || b == '\r' || b == '#') {
+                boolean zero = true;
+                for (int j = i; j < i + unit; j++) {
+                    if (j != low && bytes[j] != 0) {
+                        zero = false;
+                        break;
+                    }
+                }
+                if (zero) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public String encodingFromGarbled(byte[] bytes, int length) {
+        return encodingFromGarbled(contexts.get(), bytes, length);
+    }
+
+    private static String encodingFromGarbled(Context ctx, byte[] bytes, int length) {
+        // BMSファイル特有のチェック条件: 改行コードと"#"がないことはありえない
+        boolean marker = false;
+        for (int i = 0; i < length; i++) {
+            final byte b = bytes[i];
+            if (b == '\n' || b == '\r' || b == '#') {
+                marker = true;
+                break;
+            }
+        }
+        if (!marker) {
+            return "MS932";
+        }
+
+        // 各Charsetについて、バイト列のみから最初に不一致となる位置を調べる。
+        // 不一致が末端に近い場合、およびUTF-16/32は従来通りのラウンドトリップ変換で確定する
+        final int threshold = length - GARBLED_TAIL_MARGIN;
+        ByteBuffer in = null;
+        for (int i = 0; i < GARBLED_CHARSETS.length; i++) {
+            final int mismatch = i <= UTF_8 ? mismatch(i, bytes, length)
+                    : (containsMarker(bytes, length, i <= 4 ? 2 : 4, (i & 1) == 1) ? length : 0);
+            if (mismatch == -1) {
+                // 先頭から末端まで一致することが確定している。
+                // 改行コード、'#'は2バイト文字の一部にならないため、デコード結果にも必ず含まれる
+                return GARBLED_CHARSETS[i].name();
+            }
+            if (mismatch >= threshold) {
+                in = in != null ? in.clear().limit(length) : ByteBuffer.wrap(bytes, 0, length);
+                if (matchesRoundTrip(ctx, i, in, bytes, length)) {
+                    return GARBLED_CHARSETS[i].name();
+                }
             }
         }
 
         // すべて試行して見つからなかった場合、デフォルトとしてMS932を返す
         return "MS932";
     }
+
+    /**
+     * バイト列を文字列にデコードし、再度エンコードしたバイト列と比較する。
+     * デコード、エンコードのバッファは再利用する
+     *
+     * @return デコードした文字列に改行コードか"#"が含まれ、末端の4バイト未満を除いて一致する場合はtrue
+     */
+    private static boolean matchesRoundTrip(Context ctx, int index, ByteBuffer in, byte[] bytes, int length) {
+        CharsetDecoder decoder = ctx.garbledDecoders[index];
+        CharsetEncoder encoder = ctx.garbledEncoders[index];
+        if (decoder == null) {
+            decoder = ctx.garbledDecoders[index] = GARBLED_CHARSETS[index].newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder = ctx.garbledEncoders[index] = GARBLED_CHARSETS[index].newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        if (ctx.garbledChars.capacity() < length + 1) {
+            ctx.garbledChars = CharBuffer.allocate(length + 1);
+        }
+        // 比較に必要な先頭lengthバイトを得られれば十分なため、エンコード結果はそれ以降を切り捨てる
+        if (ctx.garbledBytes.capacity() < length + GARBLED_TAIL_MARGIN) {
+            ctx.garbledBytes = ByteBuffer.allocate(length + GARBLED_TAIL_MARGIN);
+        }
+
+        final CharBuffer chars = ctx.garbledChars.clear();
+        decoder.reset();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        boolean marker = false;
+        for (int i = chars.position(); i < chars.limit(); i++) {
+            final char c = chars.get(i);
+            if (c == '\n' || c == '\r' || c == '#') {
+                marker = true;
+                break;
+            }
+        }
+        if (!marker) {
+            return false;
+        }
+
+        final ByteBuffer newBytes = ctx.garbledBytes.clear();
+        encoder.reset();
+        if (!encoder.encode(chars, newBytes, true).isOverflow()) {
+            encoder.flush(newBytes);
+        }
+        final byte[] array = newBytes.array();
+        final int compareLength = Math.min(length, newBytes.position());
+        int correctCount = 0;
+        // Byte列を比較して一致する連続個数をカウント
+        while (correctCount < compareLength && bytes[correctCount] == array[correctCount]) {
+            correctCount++;
+        }
+        // 連続で閾値以上一致するなら、正しいエンコーディングと推測する。
+        // 末端に4バイト未満の欠落や文字化けが発生しうることを考慮
+        return correctCount > length - 4;
+    }
     
+    /**
+     * 文字コードを推測する。キャッシュが設定されている場合は同一フォルダの推測結果を先に検証し、
+     * サンプル全体がその文字コードで正しく変換できる場合はそのまま採用する
+     */
+    private String detectEncoding(Context ctx, Path path, byte[] bytes, int length) {
+        final EncodingHintCache cache = encodingHintCache;
+        final Path dir = cache != null && path != null ? path.toAbsolutePath().getParent() : null;
+        if (dir == null) {
+            final String encoding = encodingFromBOM(bytes);
+            return encoding != "MS932" ? encoding : encodingFromGarbled(ctx, bytes, length);
+        }
+        String encoding = encodingFromBOM(bytes);
+        if (encoding != "MS932") {
+            return encoding;
+        }
+        final String hint = cache.get(dir);
+        if (hint != null) {
+            for (int i = 0; i <= UTF_8; i++) {
+                if ((hint.equals(GARBLED_CHARSETS[i].name()) || (i == MS932 && hint.equals("MS932")))
+                        && mismatch(i, bytes, length) == -1) {
+                    return hint;
+                }
+            }
+        }
+        encoding = encodingFromGarbled(ctx, bytes, length);
+        cache.put(dir, encoding);
+        return encoding;
+    }
+
     public String detectEncoding(byte[] bytes) {
     	return detectEncoding(bytes, bytes.length);
     }
@@ -623,6 +1074,50 @@ public class BMSDecoder extends ChartDecoder {
     	
     	return encoding;
     }
+
+    /**
+     * BMSのデコード中の状態
+     */
+    private static final class Context extends DecodeContext {
+
+        final List<String> wavlist = new ArrayList<String>(62 * 62);
+        final int[] wm = new int[62 * 62];
+
+        final List<String> bgalist = new ArrayList<String>(62 * 62);
+        final int[] bm = new int[62 * 62];
+
+        final ChannelEventStore channels = new ChannelEventStore();
+
+        final IntDoubleTreeMap scrolltable = new IntDoubleTreeMap();
+        final IntDoubleTreeMap stoptable = new IntDoubleTreeMap();
+        final IntDoubleTreeMap bpmtable = new IntDoubleTreeMap();
+        final IntDoubleTreeMap speedtable = new IntDoubleTreeMap();
+        /**
+         * 直前のデコードで選択した各#RANDOMの値
+         */
+        int[] srandom = new int[0];
+        /**
+         * #BASEに依存するため、全行の読み込み後に解釈する定義行の開始位置と長さ
+         */
+        int[] definitions = new int[512];
+
+        final CharsetDecoder[] garbledDecoders = new CharsetDecoder[GARBLED_CHARSETS.length];
+        final CharsetEncoder[] garbledEncoders = new CharsetEncoder[GARBLED_CHARSETS.length];
+        CharBuffer garbledChars = CharBuffer.allocate(0);
+        ByteBuffer garbledBytes = ByteBuffer.allocate(0);
+
+        /**
+         * 作業領域に前回の譜面を残さないよう、譜面の内容を参照するデータを破棄する
+         */
+        void release() {
+            wavlist.clear();
+            bgalist.clear();
+            channels.clear();
+            if (definitions.length > 512) {
+                definitions = new int[512];
+            }
+        }
+    }
 }
 
 /**
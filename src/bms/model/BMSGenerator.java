@@ -1,5 +1,8 @@
 package bms.model;
 
+import java.nio.ByteBuffer;
+import java.util.*;
+
 public class BMSGenerator {
 
 	private int[] random;
@@ -7,6 +10,17 @@ public class BMSGenerator {
 	private byte[] data;
 	
 	private boolean ispms;
+
+	private final BMSDecoder decoder = new BMSDecoder();
+	/**
+	 * 解析済みのBMSファイル。最初の生成時に一度だけ解析し、以降は#RANDOMの分岐の評価のみ行う
+	 */
+	private BMSSource source;
+
+	/**
+	 * ハッシュ値の初期値。値ごとに独立したハッシュ値を算出する
+	 */
+	private static final long[] SEEDS = { 0x243F6A8885A308D3L, 0x13198A2E03707344L };
 	
 	public BMSGenerator(byte[] data, boolean ispms, int[] random) {
 		this.data = data;
@@ -14,12 +28,403 @@ public class BMSGenerator {
 		this.ispms = ispms;
 	}
 	
-	public BMSModel generate(int[] random) {
-		BMSDecoder decoder = new BMSDecoder();
-		return decoder.decode(data, ispms, random);
+	public synchronized BMSModel generate(int[] random) {
+		final BMSSource source = getSource();
+		return source != null ? decoder.decode(null, source, ispms, random) : null;
+	}
+
+	/**
+	 * #RANDOMの選択値の組み合わせのうち、有効な小節データ定義行の内容が異なるものを列挙する。
+	 * 各#RANDOMについて#IFで参照される値と、いずれの#IFにも該当しない値の代表のみを評価し、
+	 * BMSModelを生成せずに有効な小節データ定義行(#xxxyy:)の0以外の値からハッシュ値を算出する。
+	 * 値は(小節, チャンネル, 小節内の位置, 値)として扱い、同一の小節、チャンネル、位置に複数の定義行が値を定義する場合は
+	 * デコード時と同様に後の定義(地雷ノートのチャンネルは最初の定義)のみを有効とする。BGMチャンネルは全ての値を有効とする。
+	 * そのため定義行の分割や記述順、位置の分解能が異なっても同じ配置であれば一致する。
+	 * ヘッダ定義行、異なるチャンネル間の重なり(同一レーンの通常ノートとLNなど)はハッシュ値に反映しない。
+	 * ハッシュ値が一致する組み合わせは最初に見つかったもののみを返す
+	 *
+	 * @param limit
+	 *            評価する組み合わせ数の上限。上限に達した場合はVariantList.isTruncated()がtrueとなる
+	 * @return 選択値の組み合わせとハッシュ値。解析に失敗した場合は空
+	 */
+	public synchronized VariantList getVariants(int limit) {
+		final BMSSource source = getSource();
+		if (source == null) {
+			return new VariantList(Collections.<Variant>emptyList(), false);
+		}
+
+		final int linecount = source.getLineCount();
+		final ChannelEvents events = new ChannelEvents(source);
+		// 複数の値が定義される位置。定義順に並べた値のインデックス
+		final Map<Long, int[]> contested = new LinkedHashMap<Long, int[]>();
+		for (int e = 0; e < events.size; e++) {
+			if (!events.bgm[e]) {
+				final int[] defs = contested.get(events.keys[e]);
+				if (defs == null) {
+					contested.put(events.keys[e], new int[] { e });
+				} else {
+					final int[] newdefs = Arrays.copyOf(defs, defs.length + 1);
+					newdefs[defs.length] = e;
+					contested.put(events.keys[e], newdefs);
+				}
+			}
+		}
+		final List<int[]> contestedlist = new ArrayList<int[]>();
+		final boolean[] resolved = new boolean[events.size];
+		for (int[] defs : contested.values()) {
+			if (defs.length > 1) {
+				contestedlist.add(defs);
+				for (int e : defs) {
+					resolved[e] = true;
+				}
+			}
+		}
+
+		// 同一条件の連続する行をブロックにまとめ、位置が重ならない値のハッシュ値をブロックごとに加算する
+		int[] blocks = new int[16];
+		long[] hashes = new long[16 * SEEDS.length];
+		int blockcount = 0;
+		for (int i = 0; i < linecount;) {
+			final int condition = source.getCondition(i);
+			if (blockcount == blocks.length) {
+				blocks = Arrays.copyOf(blocks, blockcount * 2);
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			}
+			final int offset = blockcount * SEEDS.length;
+			Arrays.fill(hashes, offset, offset + SEEDS.length, 0);
+			for (; i < linecount && source.getCondition(i) == condition; i++) {
+				for (int e = events.lineStart[i]; e < events.lineStart[i + 1]; e++) {
+					if (!resolved[e]) {
+						for (int b = 0; b < SEEDS.length; b++) {
+							hashes[offset + b] += events.hashes[e * SEEDS.length + b];
+						}
+					}
+				}
+			}
+			blocks[blockcount++] = condition;
+		}
+
+		// 各#RANDOMの評価する値。#IFで行を持つ値と、該当しない値の代表
+		final int randomcount = source.getRandomCount();
+		final int[][] candidates = new int[randomcount][];
+		for (int i = 0; i < randomcount; i++) {
+			final int max = Math.max(source.getRandom(i), 1);
+			final Set<Integer> values = new TreeSet<Integer>();
+			for (int j = 0; j < linecount; j++) {
+				final int condition = source.getCondition(j);
+				if (condition >= 0 && source.getConditionRandom(condition) == i) {
+					final int value = source.getConditionValue(condition);
+					if (value >= 1 && value <= max) {
+						values.add(value);
+					}
+				}
+			}
+			int other = 1;
+			while (values.contains(other)) {
+				other++;
+			}
+			if (other <= max) {
+				values.add(other);
+			}
+			candidates[i] = new int[values.size()];
+			int index = 0;
+			for (int value : values) {
+				candidates[i][index++] = value;
+			}
+		}
+
+		// 選択値が確定した#RANDOMまでのブロックのハッシュ値を加算しながら、深さ優先で残りの#RANDOMの値を決定する。
+		// #IFは対応する#RANDOMより後に出現するため、先頭からのハッシュ値は分岐間で共有できる。
+		// 複数の値が定義される位置は、全ての選択値の確定後に有効な値を決定して加算する
+		final Map<String, Variant> variants = new LinkedHashMap<String, Variant>();
+		final int[] values = new int[randomcount];
+		final int[] positions = new int[randomcount + 1];
+		final int[] indexes = new int[randomcount + 1];
+		final long[][] states = new long[randomcount + 1][SEEDS.length];
+		final long[] hash = new long[SEEDS.length];
+		boolean truncated = false;
+		int depth = 0;
+		int count = 0;
+		indexes[0] = -1;
+		while (depth >= 0) {
+			if (indexes[depth] < 0) {
+				// 親の状態に、この深さで確定するブロックのハッシュ値を加算する
+				final long[] h = states[depth];
+				int block = depth > 0 ? positions[depth - 1] : 0;
+				if (depth > 0) {
+					System.arraycopy(states[depth - 1], 0, h, 0, h.length);
+				} else {
+					Arrays.fill(h, 0);
+				}
+				for (; block < blockcount; block++) {
+					final int condition = blocks[block];
+					if (condition >= 0) {
+						final int random = source.getConditionRandom(condition);
+						if (random >= depth) {
+							break;
+						}
+						if (values[random] != source.getConditionValue(condition)) {
+							continue;
+						}
+					}
+					final int offset = block * SEEDS.length;
+					for (int b = 0; b < SEEDS.length; b++) {
+						h[b] += hashes[offset + b];
+					}
+				}
+				positions[depth] = block;
+				indexes[depth] = 0;
+
+				if (depth == randomcount) {
+					if (count == limit) {
+						truncated = true;
+						break;
+					}
+					count++;
+					System.arraycopy(h, 0, hash, 0, hash.length);
+					for (int[] defs : contestedlist) {
+						int winner = -1;
+						for (int e : defs) {
+							if (source.isActive(events.lines[e], values)) {
+								winner = e;
+								if (events.mine[e]) {
+									break;
+								}
+							}
+						}
+						if (winner >= 0) {
+							for (int b = 0; b < SEEDS.length; b++) {
+								hash[b] += events.hashes[winner * SEEDS.length + b];
+							}
+						}
+					}
+					final String key = toHexString(hash);
+					if (!variants.containsKey(key)) {
+						variants.put(key, new Variant(values.clone(), key));
+					}
+					depth--;
+					continue;
+				}
+			}
+			if (indexes[depth] < candidates[depth].length) {
+				values[depth] = candidates[depth][indexes[depth]++];
+				depth++;
+				indexes[depth] = -1;
+			} else {
+				depth--;
+			}
+		}
+		return new VariantList(new ArrayList<Variant>(variants.values()), truncated);
+	}
+
+	private static String toHexString(long[] hash) {
+		final StringBuilder sb = new StringBuilder(hash.length * 16);
+		for (long l : hash) {
+			final String s = Long.toHexString(l);
+			for (int i = s.length(); i < 16; i++) {
+				sb.append('0');
+			}
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	private static long normalize(char c, boolean base62) {
+		return base62 ? c : Character.toUpperCase(c);
+	}
+
+	private static boolean isDigit(char c) {
+		return '0' <= c && c <= '9';
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			final int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private BMSSource getSource() {
+		if (source == null) {
+			source = decoder.compile(null, ByteBuffer.wrap(data));
+		}
+		return source;
 	}
 	
 	public int[] getRandom() {
 		return random;
 	}
+
+	/**
+	 * #RANDOMの選択値の組み合わせと、その組み合わせで有効な小節データ定義行の内容のハッシュ値
+	 */
+	public static class Variant {
+
+		private final int[] random;
+		private final String hash;
+
+		Variant(int[] random, String hash) {
+			this.random = random;
+			this.hash = hash;
+		}
+
+		/**
+		 * 各#RANDOMの選択値。generate()にそのまま渡すことができる
+		 */
+		public int[] getRandom() {
+			return random;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+	}
+
+	/**
+	 * getVariants()の結果
+	 */
+	public static class VariantList {
+
+		private final List<Variant> variants;
+		private final boolean truncated;
+
+		VariantList(List<Variant> variants, boolean truncated) {
+			this.variants = variants;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * ハッシュ値が異なる選択値の組み合わせを取得する
+		 */
+		public List<Variant> getVariants() {
+			return variants;
+		}
+
+		/**
+		 * 組み合わせ数が上限に達し、評価していない組み合わせが残っているかどうかを返す。
+		 * trueの場合、getVariants()は全ての組み合わせを網羅していない
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+	}
+
+	/**
+	 * 全ての小節データ定義行(#xxxyy:)の0以外の値。行の条件に関わらず、行の順に並ぶ。
+	 * 小節内の位置は既約分数に、36進数の値は大文字に正規化する
+	 */
+	private static class ChannelEvents {
+
+		int size;
+		/**
+		 * 値を定義する行
+		 */
+		int[] lines = new int[256];
+		/**
+		 * 値の(小節, チャンネル, 位置)を表すキー
+		 */
+		long[] keys = new long[256];
+		/**
+		 * 値のハッシュ値。値ごとにSEEDSの数だけ並ぶ
+		 */
+		long[] hashes = new long[256 * SEEDS.length];
+		/**
+		 * BGMチャンネルの値かどうか
+		 */
+		boolean[] bgm = new boolean[256];
+		/**
+		 * 地雷ノートのチャンネルの値かどうか
+		 */
+		boolean[] mine = new boolean[256];
+		/**
+		 * 行ごとの値の開始インデックス
+		 */
+		final int[] lineStart;
+
+		ChannelEvents(BMSSource source) {
+			final int linecount = source.getLineCount();
+			lineStart = new int[linecount + 1];
+			for (int i = 0; i < linecount; i++) {
+				lineStart[i] = size;
+				add(source, i);
+			}
+			lineStart[linecount] = size;
+		}
+
+		private void add(BMSSource source, int line) {
+			final char[] chars = source.chars;
+			final int start = source.getLineStart(line);
+			final int end = start + source.getLineLength(line);
+			if (end - start <= 6 || chars[start] != '#' || !isDigit(chars[start + 1]) || !isDigit(chars[start + 2])
+					|| !isDigit(chars[start + 3])) {
+				return;
+			}
+			final boolean base62 = source.base == 62;
+			final long bar = (chars[start + 1] - '0') * 100 + (chars[start + 2] - '0') * 10 + (chars[start + 3] - '0');
+			final long c1 = normalize(chars[start + 4], false);
+			final long c2 = normalize(chars[start + 5], false);
+			final long channel = (c1 << 16) | c2;
+			int data = start;
+			for (int j = start; j < end; j++) {
+				if (chars[j] == ':') {
+					data = j + 1;
+					break;
+				}
+			}
+
+			if (c1 == '0' && c2 == '2') {
+				// 小節の長さは数値全体を1つの値とする
+				long value = 0;
+				for (int j = data; j < end; j++) {
+					value = mix(value, chars[j]);
+				}
+				add(line, bar, channel, 0, 1, value, false, false);
+				return;
+			}
+			final boolean bgm = c1 == '0' && c2 == '1';
+			final boolean mine = (c1 == 'D' || c1 == 'E') && '1' <= c2 && c2 <= '9';
+			final int split = (end - data) / 2;
+			for (int index = 0; index < split; index++) {
+				final long v1 = normalize(chars[data + index * 2], base62);
+				final long v2 = normalize(chars[data + index * 2 + 1], base62);
+				if (v1 == '0' && v2 == '0') {
+					continue;
+				}
+				final int gcd = gcd(index, split);
+				add(line, bar, channel, index / gcd, split / gcd, (v1 << 16) | v2, bgm, mine);
+			}
+		}
+
+		private void add(int line, long bar, long channel, long numerator, long denominator, long value, boolean bgm,
+				boolean mine) {
+			if (size == lines.length) {
+				final int capacity = size * 2;
+				lines = Arrays.copyOf(lines, capacity);
+				keys = Arrays.copyOf(keys, capacity);
+				hashes = Arrays.copyOf(hashes, capacity * SEEDS.length);
+				this.bgm = Arrays.copyOf(this.bgm, capacity);
+				this.mine = Arrays.copyOf(this.mine, capacity);
+			}
+			final long key = mix(mix(mix(mix(0, bar), channel), numerator), denominator);
+			lines[size] = line;
+			keys[size] = key;
+			for (int b = 0; b < SEEDS.length; b++) {
+				long h = mix(mix(SEEDS[b], key), value);
+				h ^= h >>> 32;
+				h *= 0xD6E8FEB86659FD93L;
+				h ^= h >>> 32;
+				hashes[size * SEEDS.length + b] = h;
+			}
+			this.bgm[size] = bgm;
+			this.mine[size] = mine;
+			size++;
+		}
+	}
 }
@@ -116,6 +116,10 @@ public class BMSModel implements Comparable<BMSModel> {
 	private TimeLine[] timelines = new TimeLine[0];
 
 	private ChartInformation info;
+	/**
+	 * 全TimeLineから算出する統計値。未算出、または破棄された場合はnull
+	 */
+	private ChartStatistics statistics;
 
 	private Map<String, String> values = new HashMap<>();
 
@@ -209,6 +213,7 @@ public class BMSModel implements Comparable<BMSModel> {
 	public void setBpm(double bpm) {
 		;
 		this.bpm = bpm;
+		statistics = null;
 	}
 
 	public String getPlaylevel() {
@@ -243,26 +248,52 @@ public class BMSModel implements Comparable<BMSModel> {
 		this.volwav = volwav;
 	}
 
+	/**
+	 * 最小BPMを取得する。値はgetStatistics()の統計値から返す
+	 */
 	public double getMinBPM() {
-		double bpm = this.getBpm();
-		for (TimeLine time : timelines) {
-			final double d = time.getBPM();
-			bpm = (bpm <= d) ? bpm : d;
-		}
-		return bpm;
+		return getStatistics().getMinBPM();
 	}
 
+	/**
+	 * 最大BPMを取得する。値はgetStatistics()の統計値から返す
+	 */
 	public double getMaxBPM() {
-		double bpm = this.getBpm();
-		for (TimeLine time : timelines) {
-			final double d = time.getBPM();
-			bpm = (bpm >= d) ? bpm : d;
+		return getStatistics().getMaxBPM();
+	}
+
+	/**
+	 * 全TimeLineから算出する統計値を取得する。初回の呼び出し時に算出し、以降は破棄されるまで同じ値を返す。
+	 * TimeLineのノート、BPM、時間などを変更した場合は自動的に破棄されるが、
+	 * Note、LongNoteを直接変更した場合(ロングノートの種類の変更など)はinvalidateStatistics()を呼び出すこと
+	 *
+	 * @return 統計値
+	 */
+	public ChartStatistics getStatistics() {
+		ChartStatistics statistics = this.statistics;
+		if (statistics == null) {
+			statistics = this.statistics = new ChartStatistics(this);
 		}
-		return bpm;
+		return statistics;
+	}
+
+	/**
+	 * 統計値を破棄する。Note、LongNoteを直接変更した場合に呼び出す
+	 */
+	public void invalidateStatistics() {
+		statistics = null;
 	}
 
 	public void setAllTimeLine(TimeLine[] timelines) {
+		if (timelines != null) {
+			// デコード中に余分に確保した領域を解放し、以降のTimeLineの変更で統計値を破棄できるようにする
+			for (TimeLine tl : timelines) {
+				tl.trimToSize();
+				tl.setModel(this);
+			}
+		}
 		this.timelines = timelines;
+		statistics = null;
 	}
 
 	public TimeLine[] getAllTimeLines() {
@@ -278,40 +309,40 @@ public class BMSModel implements Comparable<BMSModel> {
 		return result;
 	}
 
+	/**
+	 * 最後にノート、BGノート、BGAのいずれかが存在するTimeLineの時間を取得する。値はgetStatistics()の統計値から返す
+	 *
+	 * @return 時間(ms)
+	 */
 	public int getLastTime() {
 		return (int) getLastMilliTime();
 	}
 
+	/**
+	 * 最後にノート、BGノート、BGAのいずれかが存在するTimeLineの時間を取得する。値はgetStatistics()の統計値から返す
+	 *
+	 * @return 時間(ms)
+	 */
 	public long getLastMilliTime() {
-		final int keys = mode.key;
-		for (int i = timelines.length - 1;i >= 0;i--) {
-			final TimeLine tl = timelines[i];
-			for (int lane = 0; lane < keys; lane++) {
-				if (tl.existNote(lane) || tl.getHiddenNote(lane) != null
-						|| tl.getBackGroundNotes().length > 0 || tl.getBGA() != -1
-						|| tl.getLayer() != -1) {
-					return tl.getMilliTime();
-				}
-			}
-		}
-		return 0;
+		return getStatistics().getLastMilliTime();
 	}
 
+	/**
+	 * 最後にノートが存在するTimeLineの時間を取得する。値はgetStatistics()の統計値から返す
+	 *
+	 * @return 時間(ms)
+	 */
 	public int getLastNoteTime() {
 		return (int) getLastNoteMilliTime();
 	}
 
+	/**
+	 * 最後にノートが存在するTimeLineの時間を取得する。値はgetStatistics()の統計値から返す
+	 *
+	 * @return 時間(ms)
+	 */
 	public long getLastNoteMilliTime() {
-		final int keys = mode.key;
-		for (int i = timelines.length - 1;i >= 0;i--) {
-			final TimeLine tl = timelines[i];
-			for (int lane = 0; lane < keys; lane++) {
-				if (tl.existNote(lane)) {
-					return tl.getMilliTime();
-				}
-			}
-		}
-		return 0;
+		return getStatistics().getLastNoteMilliTime();
 	}
 
 	public int getDifficulty() {
@@ -355,6 +386,7 @@ public class BMSModel implements Comparable<BMSModel> {
 		for(TimeLine tl : timelines) {
 			tl.setLaneCount(mode.key);
 		}
+		statistics = null;
 	}
 
 	public Mode getMode() {
@@ -382,6 +414,10 @@ public class BMSModel implements Comparable<BMSModel> {
 	}
 
 	public void setChartInformation(ChartInformation info) {
+		// 統計値はLNタイプによって総ノート数が変わる
+		if ((info != null ? info.lntype : LNTYPE_LONGNOTE) != getLntype()) {
+			statistics = null;
+		}
 		this.info = info;
 	}
 	
@@ -421,45 +457,32 @@ public class BMSModel implements Comparable<BMSModel> {
 		this.backbmp = backbmp;
 	}
 
+	/**
+	 * 総ノート数を取得する。値はgetStatistics()の統計値から返す
+	 */
 	public int getTotalNotes() {
-		return BMSModelUtils.getTotalNotes(this);
+		return getStatistics().getTotalNotes();
 	}
 
+	/**
+	 * 種類が未定義のロングノートが存在するかどうかを返す。値はgetStatistics()の統計値から返す
+	 */
 	public boolean containsUndefinedLongNote() {
-		final int keys = mode.key;
-		for (TimeLine tl : timelines) {
-			for (int i = 0; i < keys; i++) {
-				if (tl.getNote(i) != null && tl.getNote(i) instanceof LongNote
-						&& ((LongNote) tl.getNote(i)).getType() == LongNote.TYPE_UNDEFINED) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return getStatistics().containsUndefinedLongNote();
 	}
 
+	/**
+	 * ロングノートが存在するかどうかを返す。値はgetStatistics()の統計値から返す
+	 */
 	public boolean containsLongNote() {
-		final int keys = mode.key;
-		for (TimeLine tl : timelines) {
-			for (int i = 0; i < keys; i++) {
-				if (tl.getNote(i) instanceof LongNote) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return getStatistics().containsLongNote();
 	}
 
+	/**
+	 * 地雷ノートが存在するかどうかを返す。値はgetStatistics()の統計値から返す
+	 */
 	public boolean containsMineNote() {
-		final int keys = mode.key;
-		for (TimeLine tl : timelines) {
-			for (int i = 0; i < keys; i++) {
-				if (tl.getNote(i) instanceof MineNote) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return getStatistics().containsMineNote();
 	}
 
 	public String getPreview() {
@@ -482,6 +505,13 @@ public class BMSModel implements Comparable<BMSModel> {
 		return lanes;
 	}
 
+	/**
+	 * 演奏ノートを列指向で保持するビューを作成する
+	 */
+	public ColumnarChart getColumnarChart() {
+		return new ColumnarChart(this);
+	}
+
 	public int getLnobj() {
 		return lnobj;
 	}
@@ -0,0 +1,499 @@
+package bms.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import bms.model.Layer.EventType;
+
+/**
+ * デコード済みのBMSModelをバイナリ形式で保存、復元するクラス。
+ * 譜面を繰り返し開く場合に、文字コード判定や定義行の解析を行わずにBMSModelを再構築するために使用する。
+ *
+ * ノート間の参照(LNのペア、同時演奏ノート)はノート表のインデックスで表すため、
+ * 形式はバッファ上の位置に依存せず、メモリマップしたファイルからそのまま読み込むことができる
+ *
+ * @author exch
+ */
+public final class BMSModelSerializer {
+
+	/**
+	 * ファイルの識別子
+	 */
+	private static final int MAGIC = 0x424D534D;
+	/**
+	 * 形式のバージョン。保存項目を変更した場合は更新する
+	 */
+	private static final int VERSION = 1;
+
+	private static final int NORMALNOTE = 0;
+	private static final int LONGNOTE = 1;
+	private static final int MINENOTE = 2;
+
+	/**
+	 * ノート1つあたりの最小バイト数
+	 */
+	private static final int NOTE_BYTES = 53;
+	/**
+	 * TimeLine1つあたりの最小バイト数
+	 */
+	private static final int TIMELINE_BYTES = 70;
+
+	private static final Mode[] MODES = Mode.values();
+	private static final BMSModel.JudgeRankType[] JUDGERANKTYPES = BMSModel.JudgeRankType.values();
+	private static final BMSModel.TotalType[] TOTALTYPES = BMSModel.TotalType.values();
+	private static final EventType[] EVENTTYPES = EventType.values();
+
+	private BMSModelSerializer() {
+	}
+
+	/**
+	 * BMSModelをファイルに保存する
+	 *
+	 * @param model
+	 *            BMSModel
+	 * @param path
+	 *            保存先
+	 * @throws IOException
+	 *             保存に失敗した場合
+	 */
+	public static void write(BMSModel model, Path path) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+			write(model, out);
+		}
+	}
+
+	/**
+	 * BMSModelを出力する
+	 *
+	 * @param model
+	 *            BMSModel
+	 * @param os
+	 *            出力先
+	 * @throws IOException
+	 *             出力に失敗した場合
+	 */
+	public static void write(BMSModel model, OutputStream os) throws IOException {
+		final DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		out.writeInt(model.getPlayer());
+		out.writeInt(model.getMode() != null ? model.getMode().ordinal() : -1);
+		writeString(out, model.getTitle());
+		writeString(out, model.getSubTitle());
+		writeString(out, model.getGenre());
+		writeString(out, model.getArtist());
+		writeString(out, model.getSubArtist());
+		writeString(out, model.getBanner());
+		writeString(out, model.getStagefile());
+		writeString(out, model.getBackbmp());
+		writeString(out, model.getPreview());
+		out.writeDouble(model.getBpm());
+		writeString(out, model.getPlaylevel());
+		out.writeInt(model.getDifficulty());
+		out.writeInt(model.getJudgerank());
+		out.writeInt(model.getJudgerankType().ordinal());
+		out.writeDouble(model.getTotal());
+		out.writeInt(model.getTotalType().ordinal());
+		out.writeInt(model.getVolwav());
+		writeString(out, model.getMD5());
+		writeString(out, model.getSHA256());
+		out.writeInt(model.getBase());
+		out.writeInt(model.getLnmode());
+		out.writeInt(model.getLnobj());
+		writeStrings(out, model.getWavList());
+		writeStrings(out, model.getBgaList());
+
+		final ChartInformation info = model.getChartInformation();
+		out.writeBoolean(info != null);
+		if (info != null) {
+			writeString(out, info.path != null ? info.path.toString() : null);
+			out.writeInt(info.lntype);
+			writeInts(out, info.selectedRandoms);
+		}
+		out.writeInt(model.getValues().size());
+		for (Map.Entry<String, String> e : model.getValues().entrySet()) {
+			writeString(out, e.getKey());
+			writeString(out, e.getValue());
+		}
+
+		// ノート表。TimeLineからはインデックスで参照する
+		final TimeLine[] timelines = model.getAllTimeLines();
+		final Map<Note, Integer> indexes = new IdentityHashMap<Note, Integer>();
+		final List<Note> notes = new ArrayList<Note>();
+		for (TimeLine tl : timelines) {
+			for (int lane = 0; lane < tl.getLaneCount(); lane++) {
+				addNote(tl.getNote(lane), indexes, notes);
+				addNote(tl.getHiddenNote(lane), indexes, notes);
+			}
+			for (Note n : tl.getBackGroundNotes()) {
+				addNote(n, indexes, notes);
+			}
+		}
+		out.writeInt(notes.size());
+		for (Note n : notes) {
+			if (n instanceof LongNote) {
+				final LongNote ln = (LongNote) n;
+				out.writeByte(LONGNOTE);
+				out.writeInt(ln.getType());
+				out.writeBoolean(ln.isEnd());
+				out.writeInt(ln.getPair() != null ? indexes.get(ln.getPair()) : -1);
+			} else if (n instanceof MineNote) {
+				out.writeByte(MINENOTE);
+				out.writeDouble(((MineNote) n).getDamage());
+			} else {
+				out.writeByte(NORMALNOTE);
+			}
+			out.writeInt(n.getWav());
+			out.writeDouble(n.getSection());
+			out.writeLong(n.getMicroTime());
+			out.writeLong(n.getMicroStarttime());
+			out.writeLong(n.getMicroDuration());
+			out.writeInt(n.getState());
+			out.writeLong(n.getMicroPlayTime());
+			final Note[] layered = n.getLayeredNotes();
+			out.writeInt(layered.length);
+			for (Note ln : layered) {
+				out.writeInt(indexes.get(ln));
+			}
+		}
+
+		out.writeInt(timelines.length);
+		for (TimeLine tl : timelines) {
+			out.writeDouble(tl.getSection());
+			out.writeLong(tl.getMicroTime());
+			out.writeInt(tl.getLaneCount());
+			out.writeDouble(tl.getBPM());
+			out.writeLong(tl.getMicroStop());
+			out.writeDouble(tl.getScroll());
+			out.writeDouble(tl.getSpeed());
+			out.writeBoolean(tl.hasSpeedObj());
+			out.writeBoolean(tl.getSectionLine());
+			out.writeInt(tl.getBGA());
+			out.writeInt(tl.getLayer());
+			for (int lane = 0; lane < tl.getLaneCount(); lane++) {
+				final Note n = tl.getNote(lane);
+				out.writeInt(n != null ? indexes.get(n) : -1);
+			}
+			for (int lane = 0; lane < tl.getLaneCount(); lane++) {
+				final Note n = tl.getHiddenNote(lane);
+				out.writeInt(n != null ? indexes.get(n) : -1);
+			}
+			final Note[] bg = tl.getBackGroundNotes();
+			out.writeInt(bg.length);
+			for (Note n : bg) {
+				out.writeInt(indexes.get(n));
+			}
+			final Layer[] layers = tl.getEventlayer();
+			out.writeInt(layers.length);
+			for (Layer layer : layers) {
+				out.writeInt(layer.event.type.ordinal());
+				out.writeInt(layer.event.interval);
+				out.writeInt(layer.sequence.length);
+				for (Layer.Sequence[] sequence : layer.sequence) {
+					out.writeInt(sequence.length);
+					for (Layer.Sequence seq : sequence) {
+						out.writeLong(seq.time);
+						out.writeInt(seq.id);
+					}
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * ノートと同時演奏ノートをノート表に登録する
+	 */
+	private static void addNote(Note n, Map<Note, Integer> indexes, List<Note> notes) {
+		if (n == null || indexes.containsKey(n)) {
+			return;
+		}
+		if (!(n instanceof NormalNote || n instanceof LongNote || n instanceof MineNote)) {
+			throw new IllegalArgumentException("未対応のノートです : " + n.getClass().getName());
+		}
+		indexes.put(n, notes.size());
+		notes.add(n);
+		if (n instanceof LongNote) {
+			addNote(((LongNote) n).getPair(), indexes, notes);
+		}
+		for (Note ln : n.getLayeredNotes()) {
+			addNote(ln, indexes, notes);
+		}
+	}
+
+	/**
+	 * ファイルをメモリマップし、BMSModelを復元する
+	 *
+	 * @param path
+	 *            保存したファイル
+	 * @return BMSModel
+	 * @throws IOException
+	 *             読み込みに失敗した場合、または形式が異なる場合
+	 */
+	public static BMSModel read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * バイトバッファからBMSModelを復元する。バッファのpositionから読み込み、バッファの位置は変更しない
+	 *
+	 * @param data
+	 *            保存したデータ
+	 * @return BMSModel
+	 * @throws IOException
+	 *             形式が異なる場合
+	 */
+	public static BMSModel read(ByteBuffer data) throws IOException {
+		final ByteBuffer in = data.duplicate();
+		try {
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("BMSModelの保存形式が異なります");
+			}
+			final BMSModel model = new BMSModel();
+			model.setPlayer(in.getInt());
+			final int mode = in.getInt();
+			if (mode >= 0) {
+				model.setMode(MODES[mode]);
+			}
+			model.setTitle(readString(in));
+			model.setSubTitle(readString(in));
+			model.setGenre(readString(in));
+			model.setArtist(readString(in));
+			model.setSubArtist(readString(in));
+			model.setBanner(readString(in));
+			model.setStagefile(readString(in));
+			model.setBackbmp(readString(in));
+			model.setPreview(readString(in));
+			model.setBpm(in.getDouble());
+			model.setPlaylevel(readString(in));
+			model.setDifficulty(in.getInt());
+			model.setJudgerank(in.getInt());
+			model.setJudgerankType(JUDGERANKTYPES[in.getInt()]);
+			model.setTotal(in.getDouble());
+			model.setTotalType(TOTALTYPES[in.getInt()]);
+			model.setVolwav(in.getInt());
+			model.setMD5(readString(in));
+			model.setSHA256(readString(in));
+			model.setBase(in.getInt());
+			model.setLnmode(in.getInt());
+			model.setLnobj(in.getInt());
+			model.setWavList(readStrings(in));
+			model.setBgaList(readStrings(in));
+
+			if (in.get() != 0) {
+				final String path = readString(in);
+				final int lntype = in.getInt();
+				model.setChartInformation(new ChartInformation(path != null ? Paths.get(path) : null, lntype, readInts(in)));
+			}
+			final int valuecount = readCount(in, 8);
+			for (int i = 0; i < valuecount; i++) {
+				model.getValues().put(readString(in), readString(in));
+			}
+
+			final int notecount = readCount(in, NOTE_BYTES);
+			final Note[] notes = new Note[notecount];
+			final int[] pairs = new int[notecount];
+			final boolean[] ends = new boolean[notecount];
+			final double[] sections = new double[notecount];
+			final long[] times = new long[notecount];
+			final int[][] layered = new int[notecount][];
+			for (int i = 0; i < notecount; i++) {
+				final int kind = in.get();
+				pairs[i] = -1;
+				int type = 0;
+				double damage = 0;
+				if (kind == LONGNOTE) {
+					type = in.getInt();
+					ends[i] = in.get() != 0;
+					pairs[i] = in.getInt();
+				} else if (kind == MINENOTE) {
+					damage = in.getDouble();
+				} else if (kind != NORMALNOTE) {
+					throw new IOException("不明なノートの種類です : " + kind);
+				}
+				final int wav = in.getInt();
+				final Note n;
+				if (kind == LONGNOTE) {
+					final LongNote ln = new LongNote(wav);
+					ln.setType(type);
+					n = ln;
+				} else if (kind == MINENOTE) {
+					n = new MineNote(wav, damage);
+				} else {
+					n = new NormalNote(wav);
+				}
+				sections[i] = in.getDouble();
+				times[i] = in.getLong();
+				n.setMicroStarttime(in.getLong());
+				n.setMicroDuration(in.getLong());
+				n.setState(in.getInt());
+				n.setMicroPlayTime(in.getLong());
+				layered[i] = readInts(in, readCount(in, 4));
+				notes[i] = n;
+			}
+
+			final TimeLine[] timelines = new TimeLine[readCount(in, TIMELINE_BYTES)];
+			for (int i = 0; i < timelines.length; i++) {
+				final double section = in.getDouble();
+				final long time = in.getLong();
+				final int lanes = readCount(in, 8);
+				final TimeLine tl = new TimeLine(section, time, lanes);
+				tl.setBPM(in.getDouble());
+				tl.setStop(in.getLong());
+				tl.setScroll(in.getDouble());
+				final double speed = in.getDouble();
+				if (in.get() != 0) {
+					tl.setSpeedObj(speed);
+				} else {
+					tl.setSpeed(speed);
+				}
+				tl.setSectionLine(in.get() != 0);
+				tl.setBGA(in.getInt());
+				tl.setLayer(in.getInt());
+				for (int lane = 0; lane < lanes; lane++) {
+					final int index = in.getInt();
+					if (index >= 0) {
+						tl.setNote(lane, notes[index]);
+					}
+				}
+				for (int lane = 0; lane < lanes; lane++) {
+					final int index = in.getInt();
+					if (index >= 0) {
+						tl.setHiddenNote(lane, notes[index]);
+					}
+				}
+				final int bgcount = readCount(in, 4);
+				for (int j = 0; j < bgcount; j++) {
+					tl.addBackGroundNote(notes[in.getInt()]);
+				}
+				final Layer[] layers = new Layer[readCount(in, 12)];
+				for (int j = 0; j < layers.length; j++) {
+					final Layer.Event event = new Layer.Event(EVENTTYPES[in.getInt()], in.getInt());
+					final Layer.Sequence[][] sequence = new Layer.Sequence[readCount(in, 4)][];
+					for (int k = 0; k < sequence.length; k++) {
+						sequence[k] = new Layer.Sequence[readCount(in, 12)];
+						for (int l = 0; l < sequence[k].length; l++) {
+							sequence[k][l] = new Layer.Sequence(in.getLong(), in.getInt());
+						}
+					}
+					layers[j] = new Layer(event, sequence);
+				}
+				if (layers.length > 0) {
+					tl.setEventlayer(layers);
+				}
+				timelines[i] = tl;
+			}
+
+			// TimeLineへの配置で上書きされる位置を、保存時の値に戻してから参照を復元する
+			for (int i = 0; i < notecount; i++) {
+				final Note n = notes[i];
+				for (int index : layered[i]) {
+					n.addLayeredNote(notes[index]);
+				}
+			}
+			for (int i = 0; i < notecount; i++) {
+				notes[i].setSection(sections[i]);
+				notes[i].setMicroTime(times[i]);
+				if (pairs[i] >= 0) {
+					((LongNote) notes[i]).restorePair((LongNote) notes[pairs[i]], ends[i]);
+				}
+			}
+			model.setAllTimeLine(timelines);
+			return model;
+		} catch (RuntimeException e) {
+			throw new IOException("BMSModelの復元に失敗しました : " + e.getClass().getName() + " - " + e.getMessage(), e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		final int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			throw new IOException("文字列長が不正です : " + length);
+		}
+		final String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		} else {
+			final byte[] b = new byte[length];
+			in.get(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+		in.position(in.position() + length);
+		return s;
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] s) throws IOException {
+		out.writeInt(s.length);
+		for (String str : s) {
+			writeString(out, str);
+		}
+	}
+
+	private static String[] readStrings(ByteBuffer in) throws IOException {
+		final String[] s = new String[readCount(in, 4)];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = readString(in);
+		}
+		return s;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in) throws IOException {
+		final int length = in.getInt();
+		return length >= 0 ? readInts(in, length) : null;
+	}
+
+	private static int[] readInts(ByteBuffer in, int length) throws IOException {
+		if (length < 0 || length > in.remaining() / 4) {
+			throw new IOException("配列長が不正です : " + length);
+		}
+		final int[] values = new int[length];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + length * 4);
+		return values;
+	}
+
+	/**
+	 * 要素数を読み込む。配列の確保前に、残りのデータに要素が収まるかを検査する
+	 *
+	 * @param bytes
+	 *            要素1つあたりの最小バイト数
+	 */
+	private static int readCount(ByteBuffer in, int bytes) throws IOException {
+		final int count = in.getInt();
+		if (count < 0 || count > in.remaining() / bytes) {
+			throw new IOException("要素数が不正です : " + count);
+		}
+		return count;
+	}
+}
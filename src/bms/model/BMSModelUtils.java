@@ -158,20 +158,49 @@ public class BMSModelUtils {
 			tl.setStop((long) (tl.getMicroStop() / freq));
 			tl.setMicroTime((long) (tl.getMicroTime() / freq));
 		}
+		model.invalidateStatistics();
 	}
 
 	public static double getMaxNotesPerTime(BMSModel model, int range) {
 		int maxnotes = 0;
-		TimeLine[] tl = model.getAllTimeLines();
-		for (int i = 0; i < tl.length; i++) {
-			int notes = 0;
-			for (int j = i; j < tl.length && tl[j].getTime() < tl[i].getTime() + range; j++) {
-				notes += tl[j].getTotalNotes(model.getLntype());
-			}
+		for (int notes : getNotesPerTime(model, range)) {
 			maxnotes = (maxnotes < notes) ? notes : maxnotes;
 		}
 		return maxnotes;
 	}
+
+	/**
+	 * 各TimeLineを始点とする指定時間内の総ノート数を返す。難易度グラフなどノート密度の推移の表示に使用する
+	 *
+	 * @param range
+	 *            集計する時間(ms)
+	 * @return BMSModel.getAllTimeLines()の各TimeLineの時間から、range未満後までの総ノート数
+	 */
+	public static int[] getNotesPerTime(BMSModel model, int range) {
+		final TimeLine[] tl = model.getAllTimeLines();
+		final int lntype = model.getLntype();
+		final int[] times = new int[tl.length];
+		// total[i] : tl[0]からtl[i - 1]までの総ノート数
+		final int[] total = new int[tl.length + 1];
+		for (int i = 0; i < tl.length; i++) {
+			times[i] = tl[i].getTime();
+			total[i + 1] = total[i] + tl[i].getTotalNotes(lntype);
+		}
+
+		final int[] result = new int[tl.length];
+		int end = 0;
+		for (int i = 0; i < tl.length; i++) {
+			// 時間が前のTimeLineより戻っている場合は終端を求め直す
+			if (end < i || (i > 0 && times[i] < times[i - 1])) {
+				end = i;
+			}
+			while (end < tl.length && times[end] < times[i] + range) {
+				end++;
+			}
+			result[i] = total[end] - total[i];
+		}
+		return result;
+	}
 	
 	public static long setStartNoteTime(BMSModel model, long starttime) {
 		long marginTime = 0;
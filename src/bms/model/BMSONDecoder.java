@@ -1,15 +1,14 @@
 package bms.model;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static bms.model.DecodeLog.State.*;
 
@@ -18,7 +17,11 @@ import bms.model.TimeLineTreeMap.TimeLineEntry;
 import bms.model.bmson.*;
 import bms.model.bmson.Note;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
 /**
  * bmsonデコーダー
@@ -29,102 +32,271 @@ public class BMSONDecoder extends ChartDecoder {
 
 	private final ObjectMapper mapper = new ObjectMapper();
 
-	private BMSModel model;
-
-	private final TreeMap<Integer, TimeLineEntry> tlcache = new TreeMap<Integer, TimeLineEntry>();
+	private static final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
 
 	public BMSONDecoder(int lntype) {
 		this.lntype = lntype;
 	}
 
 	public BMSModel decode(ChartInformation info) {
-		this.lntype = info.lntype;
-		return decode(info.path);
+		return decode(info.path, info.lntype);
 	}
 
 	public BMSModel decode(Path f) {
+		return decode(f, lntype);
+	}
+
+	private BMSModel decode(Path f, int lntype) {
+		final Context ctx = contexts.get();
+		ctx.reset(lntype);
 		Logger.getGlobal().fine("BMSONファイル解析開始 :" + f.toString());
-		log.clear();
-		tlcache.clear();
 		final long currnttime = System.currentTimeMillis();
 		// BMS読み込み、ハッシュ値取得
-		model = new BMSModel();
 		Bmson bmson = null;
+		final List<SoundChannelNotes> channels = new ArrayList<SoundChannelNotes>();
+		String sha256 = null;
 		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			bmson = mapper.readValue(new DigestInputStream(new BufferedInputStream(Files.newInputStream(f)), digest),
-					Bmson.class);
-			model.setSHA256(BMSDecoder.convertHexString(digest.digest()));
-		} catch (NoSuchAlgorithmException | IOException e) {
+			final MessageDigest digest = getSHA256Digest();
+			bmson = read(() -> {
+				digest.reset();
+				return new DigestInputStream(new BufferedInputStream(Files.newInputStream(f)), digest);
+			}, channels);
+			sha256 = BMSDecoder.convertHexString(digest.digest());
+		} catch (IOException e) {
 			e.printStackTrace();
+			setDecodeLog(ctx.log);
 			return null;
 		}
-		
-		model.setTitle(bmson.info.title);
-		model.setSubTitle((bmson.info.subtitle != null ? bmson.info.subtitle : "")
-				+ (bmson.info.subtitle != null && bmson.info.subtitle.length() > 0 && bmson.info.chart_name != null
-						&& bmson.info.chart_name.length() > 0 ? " " : "")
-				+ (bmson.info.chart_name != null && bmson.info.chart_name.length() > 0
-						? "[" + bmson.info.chart_name + "]" : ""));
-		model.setArtist(bmson.info.artist);
-		StringBuilder subartist = new StringBuilder();
-		for (String s : bmson.info.subartists) {
-			subartist.append((subartist.length() > 0 ? "," : "") + s);
-		}
-		model.setSubArtist(subartist.toString());
-		model.setGenre(bmson.info.genre);
+		return decode(ctx, f, bmson, channels, sha256, currnttime);
+	}
 
-		if (bmson.info.judge_rank < 0) {
-			log.add(new DecodeLog(WARNING, "judge_rankが0以下です。judge_rank = " + bmson.info.judge_rank));
-		} else if (bmson.info.judge_rank < 5) {
-			model.setJudgerank(bmson.info.judge_rank);
-			log.add(new DecodeLog(WARNING, "judge_rankの定義が仕様通りでない可能性があります。judge_rank = " + bmson.info.judge_rank));
-			model.setJudgerankType(BMSModel.JudgeRankType.BMS_RANK);
-		} else {
-			model.setJudgerank(bmson.info.judge_rank);
-			model.setJudgerankType(BMSModel.JudgeRankType.BMSON_JUDGERANK);
+	public BMSModel decode(ChartInformation info, ByteBuffer data) {
+		final Context ctx = contexts.get();
+		ctx.reset(info.lntype);
+		Logger.getGlobal().fine("BMSONファイル解析開始 :" + info.path);
+		final long currnttime = System.currentTimeMillis();
+		// マップしたメモリから直接読み込み、ハッシュ値取得。decode(Path)と同じく読み込んだ範囲のみをハッシュ値の対象とする
+		Bmson bmson = null;
+		final List<SoundChannelNotes> channels = new ArrayList<SoundChannelNotes>();
+		String sha256 = null;
+		try {
+			final MessageDigest digest = getSHA256Digest();
+			bmson = read(() -> {
+				digest.reset();
+				return new DigestInputStream(new ByteBufferBackedInputStream(data.duplicate()), digest);
+			}, channels);
+			sha256 = BMSDecoder.convertHexString(digest.digest());
+		} catch (IOException e) {
+			e.printStackTrace();
+			setDecodeLog(ctx.log);
+			return null;
 		}
+		return decode(ctx, info.path, bmson, channels, sha256, currnttime);
+	}
 
-		if(bmson.info.total > 0) {
-			model.setTotal(bmson.info.total);
-			model.setTotalType(BMSModel.TotalType.BMSON);
-		} else {
-			log.add(new DecodeLog(WARNING, "totalが0以下です。total = " + bmson.info.total));
+	/**
+	 * bmsonを読み込む。sound_channelsのノートはJsonParserで1つずつ読み込み、オブジェクトを生成せずにchannelsに格納する。
+	 * 逐次読み込みに対応しない構造の場合は、ObjectMapperで全体を読み込み直す
+	 *
+	 * @param source
+	 *            bmsonの入力。読み込み直す場合は再度取得する
+	 * @param channels
+	 *            sound_channelsの格納先
+	 * @return 読み込んだbmson。sound_channelsは含まない
+	 */
+	private Bmson read(InputSource source, List<SoundChannelNotes> channels) throws IOException {
+		try {
+			return read(source.open(), channels);
+		} catch (IOException e) {
+			channels.clear();
+			final Bmson bmson = mapper.readValue(source.open(), Bmson.class);
+			for (SoundChannel sc : bmson.sound_channels) {
+				channels.add(new SoundChannelNotes(sc));
+			}
+			bmson.sound_channels = new SoundChannel[0];
+			return bmson;
 		}
+	}
 
-		model.setBpm(bmson.info.init_bpm);
-		model.setPlaylevel(String.valueOf(bmson.info.level));
-		final Mode mode = Mode.getMode(bmson.info.mode_hint);
-		if(mode != null) {
-			model.setMode(mode);			
-		} else {
-			log.add(new DecodeLog(WARNING, "非対応のmode_hintです。mode_hint = " + bmson.info.mode_hint));
-			model.setMode(Mode.BEAT_7K);
+	private Bmson read(InputStream in, List<SoundChannelNotes> channels) throws IOException {
+		try (JsonParser parser = mapper.getFactory().createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "bmsonのルートがオブジェクトではありません");
+			}
+			final Bmson bmson = new Bmson();
+			bmson.sound_channels = new SoundChannel[0];
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.getCurrentName();
+				parser.nextToken();
+				switch (name) {
+				case "version":
+					bmson.version = mapper.readValue(parser, String.class);
+					break;
+				case "info":
+					bmson.info = mapper.readValue(parser, BMSInfo.class);
+					break;
+				case "lines":
+					bmson.lines = mapper.readValue(parser, BarLine[].class);
+					break;
+				case "bpm_events":
+				case "bpmNotes":
+					bmson.bpm_events = mapper.readValue(parser, BpmEvent[].class);
+					break;
+				case "stop_events":
+				case "stopNotes":
+					bmson.stop_events = mapper.readValue(parser, StopEvent[].class);
+					break;
+				case "scroll_events":
+					bmson.scroll_events = mapper.readValue(parser, ScrollEvent[].class);
+					break;
+				case "bga":
+					bmson.bga = mapper.readValue(parser, BGA.class);
+					break;
+				case "mine_channels":
+					bmson.mine_channels = mapper.readValue(parser, MineChannel[].class);
+					break;
+				case "key_channels":
+					bmson.key_channels = mapper.readValue(parser, MineChannel[].class);
+					break;
+				case "sound_channels":
+				case "soundChannel":
+					channels.clear();
+					readSoundChannels(parser, channels);
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+			return bmson;
 		}
-		if (bmson.info.ln_type > 0 && bmson.info.ln_type <= 3) {
-			model.setLnmode(bmson.info.ln_type);
+	}
+
+	private static void readSoundChannels(JsonParser parser, List<SoundChannelNotes> channels) throws IOException {
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			throw new JsonParseException(parser, "sound_channelsが配列ではありません");
 		}
-		final int[] keyassign;
-		switch (model.getMode()) {
-			case BEAT_5K -> keyassign = new int[] { 0, 1, 2, 3, 4, -1, -1, 5 };
-			case BEAT_10K -> keyassign = new int[] { 0, 1, 2, 3, 4, -1, -1, 5, 6, 7, 8, 9, 10, -1, -1, 11 };
-			default -> {
-				keyassign = new int[model.getMode().key];
-				for (int i = 0; i < keyassign.length; i++) {
-					keyassign[i] = i;
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.currentToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "sound_channelがオブジェクトではありません");
+			}
+			String name = null;
+			SoundChannelNotes notes = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken token = parser.nextToken();
+				if (field.equals("name")) {
+					if (token == JsonToken.VALUE_STRING) {
+						name = parser.getText();
+					} else if (token == JsonToken.VALUE_NULL) {
+						name = null;
+					} else {
+						throw new JsonParseException(parser, "nameが文字列ではありません");
+					}
+				} else if (field.equals("notes")) {
+					if (token != JsonToken.START_ARRAY) {
+						throw new JsonParseException(parser, "notesが配列ではありません");
+					}
+					notes = new SoundChannelNotes((String) null);
+					while (parser.nextToken() != JsonToken.END_ARRAY) {
+						readNote(parser, notes);
+					}
+				} else {
+					parser.skipChildren();
 				}
 			}
+			if (notes == null) {
+				throw new JsonParseException(parser, "notesが定義されていません");
+			}
+			notes.name = name;
+			channels.add(notes);
 		}
-		List<LongNote>[] lnlist = new List[model.getMode().key];
-		Map<Note, LongNote> lnup = new HashMap<Note, LongNote>();
+	}
 
-		model.setBanner(bmson.info.banner_image);
-		model.setBackbmp(bmson.info.back_image);
-		model.setStagefile(bmson.info.eyecatch_image);
-		model.setPreview(bmson.info.preview_music);
-		final TimeLine basetl = new TimeLine(0, 0, model.getMode().key);
-		basetl.setBPM(model.getBpm());
-		tlcache.put(0, new TimeLineEntry(0.0, basetl));
+	private static void readNote(JsonParser parser, SoundChannelNotes notes) throws IOException {
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "noteがオブジェクトではありません");
+		}
+		int x = 0, y = 0, l = 0, t = 0;
+		boolean c = false, up = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			parser.nextToken();
+			switch (field) {
+			case "x":
+				x = readInt(parser);
+				break;
+			case "y":
+				y = readInt(parser);
+				break;
+			case "l":
+				l = readInt(parser);
+				break;
+			case "t":
+				t = readInt(parser);
+				break;
+			case "c":
+				c = readBoolean(parser);
+				break;
+			case "up":
+				up = readBoolean(parser);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		notes.add(x, y, l, c, t, up);
+	}
+
+	private static int readInt(JsonParser parser) throws IOException {
+		if (parser.currentToken() == JsonToken.VALUE_NULL) {
+			return 0;
+		}
+		if (parser.currentToken() != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) {
+			throw new JsonParseException(parser, "整数ではありません");
+		}
+		return parser.getIntValue();
+	}
+
+	private static boolean readBoolean(JsonParser parser) throws IOException {
+		switch (parser.currentToken()) {
+		case VALUE_TRUE:
+			return true;
+		case VALUE_FALSE:
+		case VALUE_NULL:
+			return false;
+		default:
+			throw new JsonParseException(parser, "真偽値ではありません");
+		}
+	}
+
+	/**
+	 * bmsonの入力
+	 */
+	private interface InputSource {
+		InputStream open() throws IOException;
+	}
+
+	private BMSModel decode(Context ctx, Path f, Bmson bmson, List<SoundChannelNotes> channels, String sha256,
+			long currnttime) {
+		try {
+			return decode(ctx, ctx.model = new BMSModel(), f, bmson, channels, sha256, currnttime);
+		} finally {
+			ctx.release();
+			setDecodeLog(ctx.log);
+		}
+	}
+
+	private BMSModel decode(Context ctx, BMSModel model, Path f, Bmson bmson, List<SoundChannelNotes> channels,
+			String sha256, long currnttime) {
+		final PulseTimeLineMap tlcache = ctx.tlcache;
+		final List<DecodeLog> log = ctx.log;
+		model.setSHA256(sha256);
+
+		setHeader(model, bmson, ctx.log);
+		final int[] keyassign = getKeyAssign(model.getMode());
+		final LongNoteIntervals[] lnlist = new LongNoteIntervals[model.getMode().key];
+		// 対応するLNが未定義のLN終端音定義。キーはレーン番号とyの組
+		final Map<Long, LongNote> lnup = new HashMap<Long, LongNote>();
 
 		if (bmson.bpm_events == null) {
 			bmson.bpm_events = new BpmEvent[0];
@@ -135,6 +307,11 @@ public class BMSONDecoder extends ChartDecoder {
 		if (bmson.scroll_events == null) {
 			bmson.scroll_events = new ScrollEvent[0];
 		}
+		reservePulses(ctx, bmson, channels);
+
+		final TimeLine basetl = new TimeLine(0, 0, model.getMode().key);
+		basetl.setBPM(model.getBpm());
+		tlcache.put(0, 0.0, basetl);
 
 		final double resolution = bmson.info.resolution > 0 ? bmson.info.resolution * 4 : 960;
 		final Comparator<BMSONObject> comparator = (n1,n2) -> (n1.y - n2.y);
@@ -152,11 +329,11 @@ public class BMSONDecoder extends ChartDecoder {
 			final int stopy = stoppos < bmson.stop_events.length ? bmson.stop_events[stoppos].y : Integer.MAX_VALUE;
 			final int scrolly = scrollpos < bmson.scroll_events.length ? bmson.scroll_events[scrollpos].y : Integer.MAX_VALUE;
 			if (scrolly <= stopy && scrolly <= bpmy) {
-				getTimeLine(scrolly, resolution).setScroll(bmson.scroll_events[scrollpos].rate);
+				getTimeLine(ctx, scrolly, resolution).setScroll(bmson.scroll_events[scrollpos].rate);
 				scrollpos++;
 			} else if (bpmy <= stopy) {
 				if(bmson.bpm_events[bpmpos].bpm > 0) {
-					getTimeLine(bpmy, resolution).setBPM(bmson.bpm_events[bpmpos].bpm);					
+					getTimeLine(ctx, bpmy, resolution).setBPM(bmson.bpm_events[bpmpos].bpm);					
 				} else {
 					log.add(new DecodeLog(WARNING,
 							"negative BPMはサポートされていません - y : " + bmson.bpm_events[bpmpos].y + " bpm : " + bmson.bpm_events[bpmpos].bpm));
@@ -164,7 +341,7 @@ public class BMSONDecoder extends ChartDecoder {
 				bpmpos++;
 			} else if (stopy != Integer.MAX_VALUE) {
 				if(bmson.stop_events[stoppos].duration >= 0) {
-					final TimeLine tl = getTimeLine(stopy, resolution);
+					final TimeLine tl = getTimeLine(ctx, stopy, resolution);
 					tl.setStop((long) ((1000.0 * 1000 * 60 * 4 * bmson.stop_events[stoppos].duration)
 							/ (tl.getBPM() * resolution)));					
 				} else {
@@ -177,77 +354,61 @@ public class BMSONDecoder extends ChartDecoder {
 		// lines処理(小節線)
 		if (bmson.lines != null) {
 			for (BarLine bl : bmson.lines) {
-				getTimeLine(bl.y, resolution).setSectionLine(true);
+				getTimeLine(ctx, bl.y, resolution).setSectionLine(true);
 			}
 		}
 
-		String[] wavmap = new String[bmson.sound_channels.length + bmson.key_channels.length + bmson.mine_channels.length];
+		String[] wavmap = new String[channels.size() + bmson.key_channels.length + bmson.mine_channels.length];
 		int id = 0;
 		long starttime = 0;
-		for (SoundChannel sc : bmson.sound_channels) {
+		for (SoundChannelNotes sc : channels) {
 			wavmap[id] = sc.name;
-			Arrays.sort(sc.notes, comparator);
-			final int length = sc.notes.length;
+			sc.sort();
+			final int length = sc.size();
+			// yが大きい直後のノート
+			int next = 0;
 			for (int i = 0; i < length; i++) {
-				final bms.model.bmson.Note n = sc.notes[i];
-				bms.model.bmson.Note next = null;
-				for (int j = i + 1; j < length; j++) {
-					if (sc.notes[j].y > n.y) {
-						next = sc.notes[j];
-						break;
+				final int x = sc.x(i);
+				final int y = sc.y(i);
+				if (next <= i) {
+					for (next = i + 1; next < length && sc.y(next) <= y; next++) {
 					}
 				}
 				long duration = 0;
-				if (!n.c) {
+				if (!sc.c(i)) {
 					starttime = 0;
 				}
-				TimeLine tl = getTimeLine(n.y, resolution);
-				if (next != null && next.c) {
-					duration = getTimeLine(next.y, resolution).getMicroTime() - tl.getMicroTime();
+				TimeLine tl = getTimeLine(ctx, y, resolution);
+				if (next < length && sc.c(next)) {
+					duration = getTimeLine(ctx, sc.y(next), resolution).getMicroTime() - tl.getMicroTime();
 				}
 
-				final int key = n.x > 0 && n.x <= keyassign.length ? keyassign[n.x - 1] : -1;
+				final int key = x > 0 && x <= keyassign.length ? keyassign[x - 1] : -1;
 				if (key < 0) {
 					// BGノート
 					tl.addBackGroundNote(new NormalNote(id, starttime, duration));
-				} else if (n.up) {
+				} else if (sc.up(i)) {
 					// LN終端音定義
-					boolean assigned = false;
-					if (lnlist[key] != null) {
-						final double section = (n.y / resolution);
-						for (LongNote ln : lnlist[key]) {
-							if (section == ln.getPair().getSection()) {
-								ln.getPair().setWav(id);
-								ln.getPair().setMicroStarttime(starttime);
-								ln.getPair().setMicroDuration(duration);
-								assigned = true;
-								break;
-							}
-						}
-					}
-					if(!assigned) {
-						lnup.put(n, new LongNote(id, starttime, duration));
+					final LongNote ln = lnlist[key] != null ? lnlist[key].getByEnd(y / resolution) : null;
+					if (ln != null) {
+						ln.getPair().setWav(id);
+						ln.getPair().setMicroStarttime(starttime);
+						ln.getPair().setMicroDuration(duration);
+					} else {
+						lnup.putIfAbsent(upNoteKey(x, y), new LongNote(id, starttime, duration));
 					}
 				} else {
-					boolean insideln = false;
-					if (lnlist[key] != null) {
-						final double section = (n.y / resolution);
-						for (LongNote ln : lnlist[key]) {
-							if (ln.getSection() < section && section <= ln.getPair().getSection()) {
-								insideln = true;
-								break;
-							}
-						}
-					}
+					final boolean insideln = lnlist[key] != null && lnlist[key].contains(y / resolution, false);
 
 					if (insideln) {
 						log.add(new DecodeLog(WARNING,
-								"LN内にノートを定義しています - x :  " + n.x + " y : " + n.y));
+								"LN内にノートを定義しています - x :  " + x + " y : " + y));
 						tl.addBackGroundNote(new NormalNote(id, starttime, duration));
 					} else {
-						if (n.l > 0) {
+						if (sc.l(i) > 0) {
 							// ロングノート
-							TimeLine end = getTimeLine(n.y + n.l, resolution);
+							final int endy = y + sc.l(i);
+							TimeLine end = getTimeLine(ctx, endy, resolution);
 							LongNote ln = new LongNote(id, starttime, duration);
 							if (tl.getNote(key) != null) {
 								// レイヤーノート判定
@@ -256,40 +417,35 @@ public class BMSONDecoder extends ChartDecoder {
 									en.addLayeredNote(ln);
 								} else {
 									log.add(new DecodeLog(WARNING,
-											"同一の位置にノートが複数定義されています - x :  " + n.x + " y : " + n.y));
+											"同一の位置にノートが複数定義されています - x :  " + x + " y : " + y));
 								}
 							} else {
 								boolean existNote = false;
-								for (TimeLineEntry tl2 : tlcache.subMap(n.y, false, n.y + n.l, true).values()) {
-									if (tl2.timeline.existNote(key)) {
+								for (int index = tlcache.nextIndex(tlcache.indexOf(y)); index >= 0
+										&& tlcache.keyAt(index) <= endy; index = tlcache.nextIndex(index)) {
+									if (tlcache.valueAt(index).timeline.existNote(key)) {
 										existNote = true;
 										break;
 									}
 								}
 								if (existNote) {
 									log.add(new DecodeLog(WARNING,
-											"LN内にノートを定義しています - x :  " + n.x + " y : " + n.y));
+											"LN内にノートを定義しています - x :  " + x + " y : " + y));
 									tl.addBackGroundNote(new NormalNote(id, starttime, duration));
 								} else {
 									tl.setNote(key, ln);
 									// ln.setDuration(end.getTime() -
 									// start.getTime());
-									LongNote lnend = null;
-									for (Entry<bms.model.bmson.Note, LongNote> up : lnup.entrySet()) {
-										if (up.getKey().y == n.y + n.l && up.getKey().x == n.x) {
-											lnend = up.getValue();
-											break;
-										}
-									}
+									LongNote lnend = lnup.get(upNoteKey(x, endy));
 									if(lnend == null) {
 										lnend = new LongNote(-2);
 									}
 
 									end.setNote(key, lnend);
-									ln.setType(n.t > 0 && n.t <= 3 ? n.t : model.getLnmode());
+									ln.setType(sc.t(i) > 0 && sc.t(i) <= 3 ? sc.t(i) : model.getLnmode());
 									ln.setPair(lnend);
 									if (lnlist[key] == null) {
-										lnlist[key] = new ArrayList<LongNote>();
+										lnlist[key] = new LongNoteIntervals();
 									}
 									lnlist[key].add(ln);
 								}
@@ -301,7 +457,7 @@ public class BMSONDecoder extends ChartDecoder {
 									tl.getNote(key).addLayeredNote(new NormalNote(id, starttime, duration));
 								} else {
 									log.add(new DecodeLog(WARNING,
-											"同一の位置にノートが複数定義されています - x :  " + n.x + " y : " + n.y));
+											"同一の位置にノートが複数定義されています - x :  " + x + " y : " + y));
 								}
 							} else {
 								tl.setNote(key, new NormalNote(id, starttime, duration));
@@ -320,7 +476,7 @@ public class BMSONDecoder extends ChartDecoder {
 			final int length = sc.notes.length;
 			for (int i = 0; i < length; i++) {
 				final bms.model.bmson.MineNote n = sc.notes[i];
-				TimeLine tl = getTimeLine(n.y, resolution);
+				TimeLine tl = getTimeLine(ctx, n.y, resolution);
 
 				final int key = n.x > 0 && n.x <= keyassign.length ? keyassign[n.x - 1] : -1;
 				if (key >= 0) {
@@ -336,20 +492,11 @@ public class BMSONDecoder extends ChartDecoder {
 			final int length = sc.notes.length;
 			for (int i = 0; i < length; i++) {
 				final bms.model.bmson.MineNote n = sc.notes[i];
-				TimeLine tl = getTimeLine(n.y, resolution);
+				TimeLine tl = getTimeLine(ctx, n.y, resolution);
 
 				final int key = n.x > 0 && n.x <= keyassign.length ? keyassign[n.x - 1] : -1;
 				if (key >= 0) {
-					boolean insideln = false;
-					if (lnlist[key] != null) {
-						final double section = (n.y / resolution);
-						for (LongNote ln : lnlist[key]) {
-							if (ln.getSection() < section && section <= ln.getPair().getSection()) {
-								insideln = true;
-								break;
-							}
-						}
-					}
+					final boolean insideln = lnlist[key] != null && lnlist[key].contains(n.y / resolution, false);
 
 					if (insideln) {
 						log.add(new DecodeLog(WARNING,
@@ -394,7 +541,7 @@ public class BMSONDecoder extends ChartDecoder {
 			}
 			if (bmson.bga.bga_events != null) {
 				for (BNote n : bmson.bga.bga_events) {
-					getTimeLine(n.y, resolution).setBGA(idmap.get(n.id));
+					getTimeLine(ctx, n.y, resolution).setBGA(idmap.get(n.id));
 				}
 			}
 			if (bmson.bga.layer_events != null) {
@@ -420,49 +567,238 @@ public class BMSONDecoder extends ChartDecoder {
 							seqs[seqindex] = new Layer.Sequence[] {new Layer.Sequence(0, idmap.get(n.id)),new Layer.Sequence(500)};
 						}						
 					}
-					getTimeLine(n.y, resolution).setEventlayer(new Layer[] {new Layer(event, seqs)});						
+					getTimeLine(ctx, n.y, resolution).setEventlayer(new Layer[] {new Layer(event, seqs)});						
 				}
 			}
 			if (bmson.bga.poor_events != null) {
 				for (BNote n : bmson.bga.poor_events) {
 					if(seqmap.containsKey(n.id) ) {
-						getTimeLine(n.y, resolution).setEventlayer(new Layer[] {new Layer(new Layer.Event(EventType.MISS, 1),
+						getTimeLine(ctx, n.y, resolution).setEventlayer(new Layer[] {new Layer(new Layer.Event(EventType.MISS, 1),
 								new Layer.Sequence[][] {seqmap.get(n.id)})});						
 					} else {
-						getTimeLine(n.y, resolution).setEventlayer(new Layer[] {new Layer(new Layer.Event(EventType.MISS, 1),
+						getTimeLine(ctx, n.y, resolution).setEventlayer(new Layer[] {new Layer(new Layer.Event(EventType.MISS, 1),
 								new Layer.Sequence[][] {{new Layer.Sequence(0, idmap.get(n.id)),new Layer.Sequence(500)}})});
 					}
 				}
 			}
 			model.setBgaList(bgamap);
 		}
-		model.setAllTimeLine(tlcache.values().stream().map(tlc -> tlc.timeline).collect(Collectors.toList()).toArray(new TimeLine[tlcache.size()]));
+		model.setAllTimeLine(tlcache.toTimeLineArray());
 
-		Logger.getGlobal().fine("BMSONファイル解析完了 :" + f.toString() + " - TimeLine数:" + tlcache.size() + " 時間(ms):"
+		Logger.getGlobal().fine("BMSONファイル解析完了 :" + f + " - TimeLine数:" + tlcache.size() + " 時間(ms):"
 				+ (System.currentTimeMillis() - currnttime));
 		
-		model.setChartInformation(new ChartInformation(f, lntype, null));
-		printLog(f);
+		model.setChartInformation(new ChartInformation(f, ctx.lntype, null));
+		// 統計値はデコード時に算出しておく
+		model.getStatistics();
+		printLog(f, log);
 		return model;
 	}
 	
-	private TimeLine getTimeLine(int y, double resolution) {
+	/**
+	 * bmsonのinfoからヘッダ情報をBMSModelに設定する
+	 */
+	private void setHeader(BMSModel model, Bmson bmson, List<DecodeLog> log) {
+		model.setTitle(bmson.info.title);
+		model.setSubTitle((bmson.info.subtitle != null ? bmson.info.subtitle : "")
+				+ (bmson.info.subtitle != null && bmson.info.subtitle.length() > 0 && bmson.info.chart_name != null
+						&& bmson.info.chart_name.length() > 0 ? " " : "")
+				+ (bmson.info.chart_name != null && bmson.info.chart_name.length() > 0
+						? "[" + bmson.info.chart_name + "]" : ""));
+		model.setArtist(bmson.info.artist);
+		StringBuilder subartist = new StringBuilder();
+		for (String s : bmson.info.subartists) {
+			subartist.append((subartist.length() > 0 ? "," : "") + s);
+		}
+		model.setSubArtist(subartist.toString());
+		model.setGenre(bmson.info.genre);
+
+		if (bmson.info.judge_rank < 0) {
+			log.add(new DecodeLog(WARNING, "judge_rankが0以下です。judge_rank = " + bmson.info.judge_rank));
+		} else if (bmson.info.judge_rank < 5) {
+			model.setJudgerank(bmson.info.judge_rank);
+			log.add(new DecodeLog(WARNING, "judge_rankの定義が仕様通りでない可能性があります。judge_rank = " + bmson.info.judge_rank));
+			model.setJudgerankType(BMSModel.JudgeRankType.BMS_RANK);
+		} else {
+			model.setJudgerank(bmson.info.judge_rank);
+			model.setJudgerankType(BMSModel.JudgeRankType.BMSON_JUDGERANK);
+		}
+
+		if(bmson.info.total > 0) {
+			model.setTotal(bmson.info.total);
+			model.setTotalType(BMSModel.TotalType.BMSON);
+		} else {
+			log.add(new DecodeLog(WARNING, "totalが0以下です。total = " + bmson.info.total));
+		}
+
+		model.setBpm(bmson.info.init_bpm);
+		model.setPlaylevel(String.valueOf(bmson.info.level));
+		final Mode mode = Mode.getMode(bmson.info.mode_hint);
+		if(mode != null) {
+			model.setMode(mode);			
+		} else {
+			log.add(new DecodeLog(WARNING, "非対応のmode_hintです。mode_hint = " + bmson.info.mode_hint));
+			model.setMode(Mode.BEAT_7K);
+		}
+		if (bmson.info.ln_type > 0 && bmson.info.ln_type <= 3) {
+			model.setLnmode(bmson.info.ln_type);
+		}
+		model.setBanner(bmson.info.banner_image);
+		model.setBackbmp(bmson.info.back_image);
+		model.setStagefile(bmson.info.eyecatch_image);
+		model.setPreview(bmson.info.preview_music);
+	}
+
+	private static int[] getKeyAssign(Mode mode) {
+		final int[] keyassign;
+		switch (mode) {
+			case BEAT_5K -> keyassign = new int[] { 0, 1, 2, 3, 4, -1, -1, 5 };
+			case BEAT_10K -> keyassign = new int[] { 0, 1, 2, 3, 4, -1, -1, 5, 6, 7, 8, 9, 10, -1, -1, 11 };
+			default -> {
+				keyassign = new int[mode.key];
+				for (int i = 0; i < keyassign.length; i++) {
+					keyassign[i] = i;
+				}
+			}
+		}
+		return keyassign;
+	}
+
+	/**
+	 * 指定したbmsonファイルのハッシュ値とヘッダ情報のみをデコードする。処理時間の大半はbmsonの読み込みのため、
+	 * 通常のデコードと同様にTimeLineを生成し、総ノート数とBPMの範囲はdecodeの結果と一致させる
+	 *
+	 * @param info
+	 *            譜面情報
+	 * @return ヘッダ情報。デコードに失敗した場合はnull
+	 */
+	public ChartHeader decodeHeader(ChartInformation info) {
+		final BMSModel model = decode(info);
+		return model != null ? new ChartHeader(model) : null;
+	}
+
+	private static Long upNoteKey(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * 譜面中のTimeLineを生成するパルス位置をすべて登録する
+	 */
+	private void reservePulses(Context ctx, Bmson bmson, List<SoundChannelNotes> channels) {
+		int count = 1 + bmson.bpm_events.length + bmson.stop_events.length + bmson.scroll_events.length;
+		if (bmson.lines != null) {
+			count += bmson.lines.length;
+		}
+		for (SoundChannelNotes sc : channels) {
+			count += sc.size() * 2;
+		}
+		for (MineChannel sc : bmson.key_channels) {
+			count += sc.notes.length;
+		}
+		for (MineChannel sc : bmson.mine_channels) {
+			count += sc.notes.length;
+		}
+		final BGA bga = bmson.bga;
+		if (bga != null) {
+			count += (bga.bga_events != null ? bga.bga_events.length : 0)
+					+ (bga.layer_events != null ? bga.layer_events.length : 0)
+					+ (bga.poor_events != null ? bga.poor_events.length : 0);
+		}
+
+		if (ctx.pulses.length < count) {
+			ctx.pulses = new int[count];
+		}
+		final int[] pulses = ctx.pulses;
+		int n = 0;
+		pulses[n++] = 0;
+		for (BpmEvent e : bmson.bpm_events) {
+			pulses[n++] = e.y;
+		}
+		for (StopEvent e : bmson.stop_events) {
+			pulses[n++] = e.y;
+		}
+		for (ScrollEvent e : bmson.scroll_events) {
+			pulses[n++] = e.y;
+		}
+		if (bmson.lines != null) {
+			for (BarLine bl : bmson.lines) {
+				pulses[n++] = bl.y;
+			}
+		}
+		for (SoundChannelNotes sc : channels) {
+			for (int i = 0; i < sc.size(); i++) {
+				pulses[n++] = sc.y(i);
+				if (sc.l(i) > 0) {
+					pulses[n++] = sc.y(i) + sc.l(i);
+				}
+			}
+		}
+		for (MineChannel sc : bmson.key_channels) {
+			for (bms.model.bmson.MineNote note : sc.notes) {
+				pulses[n++] = note.y;
+			}
+		}
+		for (MineChannel sc : bmson.mine_channels) {
+			for (bms.model.bmson.MineNote note : sc.notes) {
+				pulses[n++] = note.y;
+			}
+		}
+		if (bga != null) {
+			for (BNote[] events : new BNote[][] { bga.bga_events, bga.layer_events, bga.poor_events }) {
+				if (events != null) {
+					for (BNote note : events) {
+						pulses[n++] = note.y;
+					}
+				}
+			}
+		}
+		ctx.tlcache.reserve(pulses, n);
+	}
+
+	private TimeLine getTimeLine(Context ctx, int y, double resolution) {
+		final PulseTimeLineMap tlcache = ctx.tlcache;
 		// Timeをus単位にする場合はこのメソッド内部だけ変更すればOK
 		final TimeLineEntry tlc = tlcache.get(y);
 		if (tlc != null) {
 			return tlc.timeline;
 		}
 
-		Entry<Integer, TimeLineEntry> le = tlcache.lowerEntry(y);
-		double bpm = le.getValue().timeline.getBPM();
-		double time = le.getValue().time + le.getValue().timeline.getMicroStop()
-				+ (240000.0 * 1000 * ((y - le.getKey()) / resolution)) / bpm;
+		final int lower = tlcache.lowerIndex(y);
+		final TimeLineEntry le = tlcache.valueAt(lower);
+		double bpm = le.timeline.getBPM();
+		double time = le.time + le.timeline.getMicroStop()
+				+ (240000.0 * 1000 * ((y - tlcache.keyAt(lower)) / resolution)) / bpm;
 
-		TimeLine tl = new TimeLine(y / resolution, (long) time, model.getMode().key);
+		TimeLine tl = new TimeLine(y / resolution, (long) time, ctx.model.getMode().key);
 		tl.setBPM(bpm);
-		tlcache.put(y, new TimeLineEntry(time, tl));
+		tlcache.put(y, time, tl);
 		// System.out.println("y = " + y + " , bpm = " + bpm + " , time = " +
 		// tl.getTime());
 		return tl;
 	}	
+
+	/**
+	 * bmsonのデコード中の状態
+	 */
+	private static final class Context extends DecodeContext {
+
+		private BMSModel model;
+
+		private final PulseTimeLineMap tlcache = new PulseTimeLineMap();
+		/**
+		 * TimeLineを生成するパルス位置の作業領域
+		 */
+		private int[] pulses = new int[4096];
+
+		/**
+		 * 作業領域に前回の譜面を残さないよう破棄する。大きな譜面で拡張した領域は既定の大きさに戻す
+		 */
+		void release() {
+			model = null;
+			tlcache.release();
+			if (pulses.length > 4096) {
+				pulses = new int[4096];
+			}
+		}
+	}
 }
@@ -0,0 +1,111 @@
+package bms.model;
+
+/**
+ * 一度だけ解析したBMSファイル。ハッシュ値、デコード済みの文字バッファと、
+ * #RANDOM/#IFの条件を付けた行の並びを保持する。
+ * 乱数の選択値ごとにファイルを再解析せず、条件の評価のみでBMSModelを生成するために使用する。作成後は変更しない
+ *
+ * @author exch
+ */
+final class BMSSource {
+
+	final String md5;
+	final String sha256;
+	final char[] chars;
+	/**
+	 * #BASE。未定義の場合は0
+	 */
+	final int base;
+	/**
+	 * 解析時の警告(#RANDOM制御系、#BASE)
+	 */
+	final DecodeLog[] logs;
+	/**
+	 * 各#RANDOMの最大値。ファイル内の出現順
+	 */
+	private final int[] randoms;
+	/**
+	 * 行ごとの開始位置、長さ、条件のインデックス(無条件の場合は-1)
+	 */
+	private final int[] lines;
+	private final int lineCount;
+	/**
+	 * 条件ごとの#RANDOMのインデックスと、#IFの値
+	 */
+	private final int[] conditions;
+
+	BMSSource(String md5, String sha256, char[] chars, int base, DecodeLog[] logs, int[] randoms, int[] lines,
+			int lineCount, int[] conditions) {
+		this.md5 = md5;
+		this.sha256 = sha256;
+		this.chars = chars;
+		this.base = base;
+		this.logs = logs;
+		this.randoms = randoms;
+		this.lines = lines;
+		this.lineCount = lineCount;
+		this.conditions = conditions;
+	}
+
+	/**
+	 * #RANDOMの数
+	 */
+	int getRandomCount() {
+		return randoms.length;
+	}
+
+	/**
+	 * 指定の#RANDOMの最大値
+	 */
+	int getRandom(int index) {
+		return randoms[index];
+	}
+
+	int getLineCount() {
+		return lineCount;
+	}
+
+	int getLineStart(int line) {
+		return lines[line * 3];
+	}
+
+	int getLineLength(int line) {
+		return lines[line * 3 + 1];
+	}
+
+	/**
+	 * 行の条件のインデックス。無条件の場合は-1
+	 */
+	int getCondition(int line) {
+		return lines[line * 3 + 2];
+	}
+
+	int getConditionCount() {
+		return conditions.length / 2;
+	}
+
+	/**
+	 * 条件が参照する#RANDOMのインデックス
+	 */
+	int getConditionRandom(int condition) {
+		return conditions[condition * 2];
+	}
+
+	/**
+	 * 条件の#IFの値
+	 */
+	int getConditionValue(int condition) {
+		return conditions[condition * 2 + 1];
+	}
+
+	/**
+	 * 乱数の選択値に対して、指定の行が有効かどうかを返す。#IFが入れ子の場合は最も内側の#IFのみで判定する
+	 *
+	 * @param values
+	 *            各#RANDOMの選択値
+	 */
+	boolean isActive(int line, int[] values) {
+		final int condition = lines[line * 3 + 2];
+		return condition < 0 || values[conditions[condition * 2]] == conditions[condition * 2 + 1];
+	}
+}
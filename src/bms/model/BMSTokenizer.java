@@ -0,0 +1,217 @@
+package bms.model;
+
+/**
+ * 一度だけデコードした文字バッファ上でBMSの行を切り出すトークナイザ。
+ * 行ごとのStringを生成せず、オフセットと長さで行・予約語・引数を扱う。
+ * Stringを生成するのはBMSModelに格納する値やログ出力時のみとする。
+ *
+ * @author exch
+ */
+final class BMSTokenizer {
+
+	private final char[] buf;
+	private final int limit;
+	/**
+	 * 次の行の読み込み開始位置
+	 */
+	private int pos;
+	/**
+	 * 現在行の開始位置
+	 */
+	private int start;
+	/**
+	 * 現在行の長さ(改行コードを含まない)
+	 */
+	private int length;
+
+	BMSTokenizer(char[] buf, int limit) {
+		this.buf = buf;
+		this.limit = limit;
+	}
+
+	/**
+	 * 次の行へ進める。BufferedReader.readLine()と同様に\n, \r, \r\nを行末とみなす
+	 *
+	 * @return 次の行が存在する場合はtrue
+	 */
+	boolean nextLine() {
+		if (pos >= limit) {
+			return false;
+		}
+		int i = pos;
+		while (i < limit) {
+			final char c = buf[i];
+			if (c == '\n' || c == '\r') {
+				break;
+			}
+			i++;
+		}
+		start = pos;
+		length = i - pos;
+		if (i < limit) {
+			i += (buf[i] == '\r' && i + 1 < limit && buf[i + 1] == '\n') ? 2 : 1;
+		}
+		pos = i;
+		return true;
+	}
+
+	/**
+	 * 記録しておいた位置の行を現在行とする
+	 */
+	void setLine(int start, int length) {
+		this.start = start;
+		this.length = length;
+	}
+
+	int start() {
+		return start;
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * 現在行の指定位置の文字を返す
+	 *
+	 * @return 文字。行の範囲外の場合は0
+	 */
+	char charAt(int index) {
+		return index >= 0 && index < length ? buf[start + index] : 0;
+	}
+
+	int indexOf(char c) {
+		for (int i = start, end = start + length; i < end; i++) {
+			if (buf[i] == c) {
+				return i - start;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 現在行が'#'に続いて指定の予約語で始まるかどうかを返す。大文字小文字は区別しない
+	 */
+	boolean matchesReserveWord(String s) {
+		final int len = s.length();
+		if (length <= len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			final char c = buf[start + i + 1];
+			final char c2 = s.charAt(i);
+			if (c != c2 && c != c2 + 32) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 現在行の指定位置以降を前後の空白を除いて整数として解釈する。
+	 * Integer.parseInt(line.substring(from).trim())と同じ結果を返す
+	 */
+	int parseInt(int from) throws NumberFormatException {
+		int s = start + Math.min(from, length);
+		int e = start + length;
+		while (s < e && buf[s] <= ' ') {
+			s++;
+		}
+		while (e > s && buf[e - 1] <= ' ') {
+			e--;
+		}
+		if (s == e) {
+			throw new NumberFormatException();
+		}
+		boolean negative = false;
+		final char first = buf[s];
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++s == e) {
+				throw new NumberFormatException();
+			}
+		}
+		long result = 0;
+		for (; s < e; s++) {
+			final int digit = Character.digit(buf[s], 10);
+			if (digit < 0) {
+				throw new NumberFormatException();
+			}
+			result = result * 10 + digit;
+			if (result > (long) Integer.MAX_VALUE + 1) {
+				throw new NumberFormatException();
+			}
+		}
+		if (negative) {
+			result = -result;
+		}
+		if (result > Integer.MAX_VALUE) {
+			throw new NumberFormatException();
+		}
+		return (int) result;
+	}
+
+	/**
+	 * 現在行の指定位置以降を小数として解釈する
+	 */
+	double parseDouble(int from) throws NumberFormatException {
+		return Double.parseDouble(string(from));
+	}
+
+	/**
+	 * 現在行の指定位置の2文字を36進数として解釈する
+	 */
+	int parseInt36(int index) throws NumberFormatException {
+		if (index < 0 || index + 2 > length) {
+			throw new NumberFormatException();
+		}
+		final int result = ChartDecoder.parseInt36(buf[start + index], buf[start + index + 1]);
+		if (result == -1) {
+			throw new NumberFormatException();
+		}
+		return result;
+	}
+
+	/**
+	 * 現在行の指定位置の2文字を62進数として解釈する
+	 */
+	int parseInt62(int index) throws NumberFormatException {
+		if (index < 0 || index + 2 > length) {
+			throw new NumberFormatException();
+		}
+		final int result = ChartDecoder.parseInt62(buf[start + index], buf[start + index + 1]);
+		if (result == -1) {
+			throw new NumberFormatException();
+		}
+		return result;
+	}
+
+	/**
+	 * 現在行の指定位置以降を前後の空白を除いた文字列として返す
+	 */
+	String string(int from) {
+		int s = start + Math.min(from, length);
+		int e = start + length;
+		while (s < e && buf[s] <= ' ') {
+			s++;
+		}
+		while (e > s && buf[e - 1] <= ' ') {
+			e--;
+		}
+		return new String(buf, s, e - s);
+	}
+
+	/**
+	 * 現在行の指定範囲を文字列として返す
+	 */
+	String substring(int from, int to) {
+		return new String(buf, start + from, to - from);
+	}
+
+	/**
+	 * 現在行全体を文字列として返す
+	 */
+	String line() {
+		return new String(buf, start, length);
+	}
+}
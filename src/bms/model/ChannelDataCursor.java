@@ -0,0 +1,101 @@
+package bms.model;
+
+import java.util.List;
+
+import static bms.model.DecodeLog.State.*;
+
+/**
+ * 小節データ定義行のデータ部を先頭から順に読み込むカーソル。
+ * 定義行ごとにラムダや配列を生成せず、同一インスタンスを再利用して値と小節内の位置(index / split)を取得する
+ *
+ * @author exch
+ */
+final class ChannelDataCursor {
+
+	private ChannelEventStore events;
+	private int event;
+	private char[] buf;
+	private int start;
+	private int split;
+	private boolean base62;
+	private BMSModel model;
+	private List<DecodeLog> log;
+
+	private int index;
+	private int value;
+
+	/**
+	 * 指定の定義行の先頭にカーソルを設定する
+	 */
+	ChannelDataCursor reset(ChannelEventStore events, int event, BMSModel model, List<DecodeLog> log) {
+		this.events = events;
+		this.event = event;
+		this.model = model;
+		this.log = log;
+		buf = events.buffer();
+		start = events.dataStart(event);
+		split = (events.dataEnd(event) - start) / 2;
+		base62 = model.getBase() == 62;
+		index = -1;
+		return this;
+	}
+
+	/**
+	 * 0以外の次の値に進める。不正な値はログに記録して読み飛ばす
+	 *
+	 * @return 次の値が存在する場合はtrue
+	 */
+	boolean next() {
+		while (nextSlot()) {
+			if (value > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 0を含む次の値に進める。不正な値はログに記録して0とする
+	 *
+	 * @return 次の値が存在する場合はtrue
+	 */
+	boolean nextSlot() {
+		if (++index >= split) {
+			index = split;
+			return false;
+		}
+		final int offset = start + index * 2;
+		value = base62 ? ChartDecoder.parseInt62(buf[offset], buf[offset + 1])
+				: ChartDecoder.parseInt36(buf[offset], buf[offset + 1]);
+		if (value == -1) {
+			log.add(new DecodeLog(WARNING, model.getTitle() + ":チャンネル定義中の不正な値:" + events.line(event)));
+			value = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * 現在の値の小節内の位置の分子
+	 */
+	int index() {
+		return index;
+	}
+
+	/**
+	 * 現在の定義行の小節の分割数(位置の分母)
+	 */
+	int split() {
+		return split;
+	}
+
+	/**
+	 * 現在の値の小節内の位置(0以上1未満)
+	 */
+	double position() {
+		return (double) index / split;
+	}
+
+	int value() {
+		return value;
+	}
+}
@@ -0,0 +1,180 @@
+package bms.model;
+
+import java.util.Arrays;
+
+/**
+ * BMSの小節データ定義行(#xxxyy:...)を、行ごとのStringを生成せずに保持するクラス。
+ * 小節番号、チャンネル、デコード済み文字バッファ上のデータ部の位置をプリミティブ配列に記録し、
+ * Sectionは文字バッファから直接データを読み込む。
+ *
+ * @author exch
+ */
+final class ChannelEventStore {
+
+	private char[] buf;
+	private int size;
+
+	private int[] bar = new int[1024];
+	private int[] channel = new int[1024];
+	/**
+	 * 行の開始位置
+	 */
+	private int[] lineStart = new int[1024];
+	/**
+	 * 行の終了位置
+	 */
+	private int[] lineEnd = new int[1024];
+	/**
+	 * データ部の開始位置(':'の次の文字)。':'が存在しない場合は行の開始位置
+	 */
+	private int[] dataStart = new int[1024];
+
+	/**
+	 * 小節番号順に並べた定義行のインデックス。同一小節内は定義順
+	 */
+	private int[] order = new int[1024];
+	/**
+	 * 小節ごとのorder上の開始位置
+	 */
+	private int[] barStart = new int[1001];
+
+	/**
+	 * 定義行のデータ部を読み込むカーソル。Sectionで再利用する
+	 */
+	private final ChannelDataCursor cursor = new ChannelDataCursor();
+
+	/**
+	 * 保持している定義行を破棄し、新たな文字バッファを設定する
+	 */
+	void reset(char[] buf) {
+		this.buf = buf;
+		size = 0;
+	}
+
+	/**
+	 * 保持している定義行と文字バッファへの参照を破棄する
+	 */
+	void clear() {
+		buf = null;
+		size = 0;
+	}
+
+	/**
+	 * 定義行を追加する。行の長さは7文字以上であること
+	 *
+	 * @param bar
+	 *            小節番号
+	 * @param start
+	 *            行の開始位置
+	 * @param length
+	 *            行の長さ
+	 */
+	void add(int bar, int start, int length) {
+		if (size == this.bar.length) {
+			final int capacity = size * 2;
+			this.bar = Arrays.copyOf(this.bar, capacity);
+			channel = Arrays.copyOf(channel, capacity);
+			lineStart = Arrays.copyOf(lineStart, capacity);
+			lineEnd = Arrays.copyOf(lineEnd, capacity);
+			dataStart = Arrays.copyOf(dataStart, capacity);
+		}
+		this.bar[size] = bar;
+		channel[size] = ChartDecoder.parseInt36(buf[start + 4], buf[start + 5]);
+		lineStart[size] = start;
+		lineEnd[size] = start + length;
+		int data = start;
+		for (int i = start; i < start + length; i++) {
+			if (buf[i] == ':') {
+				data = i + 1;
+				break;
+			}
+		}
+		dataStart[size] = data;
+		size++;
+	}
+
+	/**
+	 * 定義行を小節番号順に並べる。定義行の追加後、小節ごとの取得前に呼び出す
+	 *
+	 * @param maxbar
+	 *            最大の小節番号
+	 */
+	void sort(int maxbar) {
+		if (barStart.length < maxbar + 2) {
+			barStart = new int[maxbar + 2];
+		}
+		if (order.length < size) {
+			order = new int[this.bar.length];
+		}
+		Arrays.fill(barStart, 0, maxbar + 2, 0);
+		for (int i = 0; i < size; i++) {
+			barStart[bar[i] + 1]++;
+		}
+		for (int i = 0; i <= maxbar; i++) {
+			barStart[i + 1] += barStart[i];
+		}
+		// 同一小節内の定義順を保つため、小節ごとの書き込み位置を進めながら配置する
+		for (int i = 0; i < size; i++) {
+			order[barStart[bar[i]]++] = i;
+		}
+		for (int i = maxbar; i > 0; i--) {
+			barStart[i] = barStart[i - 1];
+		}
+		barStart[0] = 0;
+	}
+
+	/**
+	 * 指定小節の定義行の、orderでの開始位置を返す
+	 */
+	int begin(int bar) {
+		return barStart[bar];
+	}
+
+	/**
+	 * 指定小節の定義行の、orderでの終了位置を返す
+	 */
+	int end(int bar) {
+		return barStart[bar + 1];
+	}
+
+	/**
+	 * 小節番号順でindex番目の定義行を返す
+	 */
+	int event(int index) {
+		return order[index];
+	}
+
+	ChannelDataCursor cursor() {
+		return cursor;
+	}
+
+	char[] buffer() {
+		return buf;
+	}
+
+	int channel(int event) {
+		return channel[event];
+	}
+
+	int dataStart(int event) {
+		return dataStart[event];
+	}
+
+	int dataEnd(int event) {
+		return lineEnd[event];
+	}
+
+	/**
+	 * データ部を文字列として返す
+	 */
+	String data(int event) {
+		return new String(buf, dataStart[event], lineEnd[event] - dataStart[event]);
+	}
+
+	/**
+	 * 定義行全体を文字列として返す。ログ出力用
+	 */
+	String line(int event) {
+		return new String(buf, lineStart[event], lineEnd[event] - lineStart[event]);
+	}
+}
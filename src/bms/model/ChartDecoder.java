@@ -1,11 +1,18 @@
 package bms.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
+import static bms.model.DecodeLog.State.*;
+
 /**
  * 譜面デコーダー
  * 
@@ -13,9 +20,23 @@ import java.util.logging.Logger;
  */
 public abstract class ChartDecoder {
 
+	/**
+	 * LNタイプの既定値。デコード中の状態はDecodeContextに保持し、デコーダー自体は変更しない
+	 */
 	int lntype;
 
-	List<DecodeLog> log = new ArrayList<DecodeLog>();
+	/**
+	 * スレッドごとの直前のデコードログ
+	 */
+	private final ThreadLocal<DecodeLog[]> decodelog = ThreadLocal.withInitial(() -> new DecodeLog[0]);
+
+	/**
+	 * ハッシュ値計算時にMD5とSHA-256を交互に更新するブロックサイズ
+	 */
+	private static final int HASH_BLOCK_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<MessageDigest> md5digest = ThreadLocal.withInitial(() -> getMessageDigest("MD5"));
+	private static final ThreadLocal<MessageDigest> sha256digest = ThreadLocal.withInitial(() -> getMessageDigest("SHA-256"));
 
 	/**
 	 * パスで指定したファイルをBMSModelに変換する
@@ -40,16 +61,80 @@ public abstract class ChartDecoder {
 	}
 	
 	/**
-	 * デコードログを取得する
+	 * 呼び出したスレッドで直前にデコードした譜面のデコードログを取得する
 	 * 
 	 * @return デコードログ
 	 */
 	public DecodeLog[] getDecodeLog() {
-		return log.toArray(new DecodeLog[log.size()]);
+		return decodelog.get();
+	}
+
+	void setDecodeLog(List<DecodeLog> log) {
+		decodelog.set(log.toArray(new DecodeLog[log.size()]));
 	}
 	
 	public abstract BMSModel decode(ChartInformation info);
 
+	/**
+	 * 譜面をBMSModelに変換し、デコードログとともに返す。
+	 * 複数スレッドから同一のデコーダーを使用する場合でも、各スレッドのデコードログを取得できる
+	 * 
+	 * @param info
+	 *            譜面情報
+	 * @return デコード結果
+	 */
+	public DecodeResult decodeWithLog(ChartInformation info) {
+		final BMSModel model = decode(info);
+		return new DecodeResult(model, getDecodeLog());
+	}
+
+	/**
+	 * パスで指定したファイルのハッシュ値とヘッダ情報のみを取得する。
+	 * BGノート、BGAなど演奏ノート以外を配置しないため、楽曲一覧の作成などではdecodeより高速に処理できる。
+	 * 総ノート数、BPMの範囲、LN、地雷ノートの有無はdecodeの結果と一致する
+	 * 
+	 * @param path
+	 *            譜面ファイルのパス
+	 * @return ヘッダ情報。失敗した場合はnull
+	 */
+	public ChartHeader decodeHeader(Path path) {
+		return decodeHeader(new ChartInformation(path, lntype, null));
+	}
+
+	public abstract ChartHeader decodeHeader(ChartInformation info);
+
+	/**
+	 * ファイルチャネルをメモリマップし、譜面をBMSModelに変換する。
+	 * ファイル内容をヒープに複製せず、マップしたメモリから直接解析、ハッシュ値計算を行う
+	 * 
+	 * @param info
+	 *            譜面情報
+	 * @param channel
+	 *            譜面ファイルのチャネル
+	 * @return 変換したBMSModel。失敗した場合はnull
+	 */
+	public BMSModel decode(ChartInformation info, FileChannel channel) {
+		try {
+			return decode(info, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			setDecodeLog(Collections.singletonList(new DecodeLog(ERROR, "譜面ファイルのマップに失敗しました")));
+			Logger.getGlobal().severe(info.path + ":譜面ファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * バイトバッファ(MappedByteBufferを含む)の譜面をBMSModelに変換する。
+	 * バッファのpositionからlimitまでを譜面データとして扱い、バッファの位置は変更しない
+	 * 
+	 * @param info
+	 *            譜面情報
+	 * @param data
+	 *            譜面データ
+	 * @return 変換したBMSModel。失敗した場合はnull
+	 */
+	public abstract BMSModel decode(ChartInformation info, ByteBuffer data);
+
 	/**
 	 * パスで指定したファイルに対応するChartDecoderを取得する
 	 * 
@@ -153,8 +238,57 @@ public abstract class ChartDecoder {
 		return new String(sb.reverse());
 	}
 	
-	protected void printLog(Path path) {
-		log.forEach(log -> {
+	private static MessageDigest getMessageDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * スレッドごとに再利用するSHA-256のMessageDigestを取得する
+	 * 
+	 * @return リセット済みのMessageDigest
+	 */
+	static MessageDigest getSHA256Digest() {
+		final MessageDigest digest = sha256digest.get();
+		digest.reset();
+		return digest;
+	}
+
+	/**
+	 * 譜面データのハッシュ値を計算する。
+	 * MD5も計算する場合はブロック単位で両方のMessageDigestを更新し、データの読み出しを1回にまとめる
+	 * 
+	 * @param data
+	 *            譜面データ。バッファの位置は変更しない
+	 * @param md5
+	 *            MD5も計算する場合はtrue
+	 * @return MD5(計算しない場合はnull)、SHA-256の16進数文字列表現
+	 */
+	static String[] computeHash(ByteBuffer data, boolean md5) {
+		final MessageDigest sha256 = getSHA256Digest();
+		if (!md5) {
+			sha256.update(data.duplicate());
+			return new String[] { null, BMSDecoder.convertHexString(sha256.digest()) };
+		}
+		final MessageDigest md5digest = ChartDecoder.md5digest.get();
+		md5digest.reset();
+		final ByteBuffer buf = data.duplicate();
+		final int end = buf.limit();
+		for (int pos = buf.position(); pos < end; pos += HASH_BLOCK_SIZE) {
+			buf.limit(Math.min(pos + HASH_BLOCK_SIZE, end)).position(pos);
+			md5digest.update(buf);
+			buf.position(pos);
+			sha256.update(buf);
+		}
+		return new String[] { BMSDecoder.convertHexString(md5digest.digest()),
+				BMSDecoder.convertHexString(sha256.digest()) };
+	}
+
+	protected void printLog(Path path, List<DecodeLog> logs) {
+		logs.forEach(log -> {
 			switch(log.getState()) {
 			case INFO -> Logger.getGlobal().info(path + " : " + log.getMessage());
 			case WARNING -> Logger.getGlobal().warning(path + " : " + log.getMessage());
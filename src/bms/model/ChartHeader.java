@@ -0,0 +1,277 @@
+package bms.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 譜面のハッシュ値とヘッダ情報。楽曲一覧の作成など、TimeLineを必要としない用途で使用する
+ *
+ * @author exch
+ */
+public class ChartHeader {
+
+	private final Path path;
+	private final String md5;
+	private final String sha256;
+	private final String title;
+	private final String subTitle;
+	private final String genre;
+	private final String artist;
+	private final String subartist;
+	private final String playlevel;
+	private final int difficulty;
+	private final Mode mode;
+	private final int judgerank;
+	private final double total;
+	private final String banner;
+	private final String stagefile;
+	private final String backbmp;
+	private final String preview;
+	private final int lnmode;
+	private final int lntype;
+	/**
+	 * 標準BPM
+	 */
+	private final double bpm;
+	private final double minbpm;
+	private final double maxbpm;
+	/**
+	 * 総ノート数
+	 */
+	private final int totalnotes;
+	private final boolean longnote;
+	private final boolean minenote;
+
+	/**
+	 * デコード済みのBMSModelからヘッダ情報を作成する
+	 *
+	 * @param model
+	 *            BMSModel
+	 */
+	public ChartHeader(BMSModel model) {
+		final ChartInformation info = model.getChartInformation();
+		this.path = info != null ? info.path : null;
+		this.lntype = model.getLntype();
+		this.md5 = model.getMD5();
+		this.sha256 = model.getSHA256();
+		this.title = model.getTitle();
+		this.subTitle = model.getSubTitle();
+		this.genre = model.getGenre();
+		this.artist = model.getArtist();
+		this.subartist = model.getSubArtist();
+		this.playlevel = model.getPlaylevel();
+		this.difficulty = model.getDifficulty();
+		this.mode = model.getMode();
+		this.judgerank = model.getJudgerank();
+		this.total = model.getTotal();
+		this.banner = model.getBanner();
+		this.stagefile = model.getStagefile();
+		this.backbmp = model.getBackbmp();
+		this.preview = model.getPreview();
+		this.lnmode = model.getLnmode();
+		this.bpm = model.getBpm();
+		this.minbpm = model.getMinBPM();
+		this.maxbpm = model.getMaxBPM();
+		this.totalnotes = model.getTotalNotes();
+		this.longnote = model.containsLongNote();
+		this.minenote = model.containsMineNote();
+	}
+
+	/**
+	 * ChartHeaderCacheのキャッシュファイルから読み込む
+	 */
+	ChartHeader(DataInput in) throws IOException {
+		final String path = readString(in);
+		this.path = path != null ? Paths.get(path) : null;
+		this.md5 = readString(in);
+		this.sha256 = readString(in);
+		this.title = readString(in);
+		this.subTitle = readString(in);
+		this.genre = readString(in);
+		this.artist = readString(in);
+		this.subartist = readString(in);
+		this.playlevel = readString(in);
+		this.difficulty = in.readInt();
+		final String mode = readString(in);
+		try {
+			this.mode = mode != null ? Mode.valueOf(mode) : null;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("不明なモードです : " + mode);
+		}
+		this.judgerank = in.readInt();
+		this.total = in.readDouble();
+		this.banner = readString(in);
+		this.stagefile = readString(in);
+		this.backbmp = readString(in);
+		this.preview = readString(in);
+		this.lnmode = in.readInt();
+		this.lntype = in.readInt();
+		this.bpm = in.readDouble();
+		this.minbpm = in.readDouble();
+		this.maxbpm = in.readDouble();
+		this.totalnotes = in.readInt();
+		this.longnote = in.readBoolean();
+		this.minenote = in.readBoolean();
+	}
+
+	/**
+	 * ChartHeaderCacheのキャッシュファイルに書き込む
+	 */
+	void write(DataOutput out) throws IOException {
+		writeString(out, path != null ? path.toString() : null);
+		writeString(out, md5);
+		writeString(out, sha256);
+		writeString(out, title);
+		writeString(out, subTitle);
+		writeString(out, genre);
+		writeString(out, artist);
+		writeString(out, subartist);
+		writeString(out, playlevel);
+		out.writeInt(difficulty);
+		writeString(out, mode != null ? mode.name() : null);
+		out.writeInt(judgerank);
+		out.writeDouble(total);
+		writeString(out, banner);
+		writeString(out, stagefile);
+		writeString(out, backbmp);
+		writeString(out, preview);
+		out.writeInt(lnmode);
+		out.writeInt(lntype);
+		out.writeDouble(bpm);
+		out.writeDouble(minbpm);
+		out.writeDouble(maxbpm);
+		out.writeInt(totalnotes);
+		out.writeBoolean(longnote);
+		out.writeBoolean(minenote);
+	}
+
+	/**
+	 * 文字列をUTF-8のバイト長とともに書き込む。nullの場合はバイト長を-1とする
+	 */
+	static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static String readString(DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > 1024 * 1024) {
+			throw new IOException("文字列長が不正です : " + length);
+		}
+		final byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public String getMD5() {
+		return md5;
+	}
+
+	public String getSHA256() {
+		return sha256;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getSubTitle() {
+		return subTitle;
+	}
+
+	public String getGenre() {
+		return genre;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public String getSubArtist() {
+		return subartist;
+	}
+
+	public String getPlaylevel() {
+		return playlevel;
+	}
+
+	public int getDifficulty() {
+		return difficulty;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getJudgerank() {
+		return judgerank;
+	}
+
+	public double getTotal() {
+		return total;
+	}
+
+	public String getBanner() {
+		return banner;
+	}
+
+	public String getStagefile() {
+		return stagefile;
+	}
+
+	public String getBackbmp() {
+		return backbmp;
+	}
+
+	public String getPreview() {
+		return preview;
+	}
+
+	public int getLnmode() {
+		return lnmode;
+	}
+
+	public int getLntype() {
+		return lntype;
+	}
+
+	public double getBpm() {
+		return bpm;
+	}
+
+	public double getMinBPM() {
+		return minbpm;
+	}
+
+	public double getMaxBPM() {
+		return maxbpm;
+	}
+
+	public int getTotalNotes() {
+		return totalnotes;
+	}
+
+	public boolean containsLongNote() {
+		return longnote;
+	}
+
+	public boolean containsMineNote() {
+		return minenote;
+	}
+}
@@ -0,0 +1,150 @@
+package bms.model;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * 譜面ファイルのパス、サイズ、更新日時をキーとしたヘッダ情報のキャッシュ。
+ * ファイルに保存しておくことで、再スキャン時に変更のない譜面のデコードを省略できる。
+ * サイズか更新日時が変わった譜面はキャッシュに存在しないものとして扱う。複数スレッドから使用できる
+ *
+ * @author exch
+ */
+public class ChartHeaderCache {
+
+	/**
+	 * キャッシュファイルの識別子
+	 */
+	private static final int MAGIC = 0x4A424843;
+	/**
+	 * キャッシュファイルの形式のバージョン。ChartHeaderの保存項目、または保存する値の算出方法を変更した場合は更新する
+	 */
+	private static final int VERSION = 2;
+
+	private final Map<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+
+	/**
+	 * 譜面ファイルのヘッダ情報を取得する
+	 *
+	 * @param path
+	 *            譜面ファイルのパス
+	 * @param size
+	 *            譜面ファイルのサイズ
+	 * @param lastModified
+	 *            譜面ファイルの更新日時(ms)
+	 * @param lntype
+	 *            LNタイプ
+	 * @return ヘッダ情報。存在しないか、サイズ、更新日時、LNタイプが一致しない場合はnull
+	 */
+	public ChartHeader get(Path path, long size, long lastModified, int lntype) {
+		final Entry entry = entries.get(path);
+		return entry != null && entry.size == size && entry.lastModified == lastModified
+				&& entry.header.getLntype() == lntype ? entry.header : null;
+	}
+
+	public void put(Path path, long size, long lastModified, ChartHeader header) {
+		entries.put(path, new Entry(size, lastModified, header));
+	}
+
+	public void remove(Path path) {
+		entries.remove(path);
+	}
+
+	/**
+	 * キャッシュに登録されている譜面ファイルのパスを取得する
+	 */
+	public List<Path> getPaths() {
+		return new ArrayList<Path>(entries.keySet());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * キャッシュファイルを読み込む。形式が異なるか破損している場合は空のキャッシュを返す
+	 *
+	 * @param file
+	 *            キャッシュファイル
+	 * @return キャッシュ
+	 */
+	public static ChartHeaderCache load(Path file) {
+		final ChartHeaderCache cache = new ChartHeaderCache();
+		if (!Files.exists(file)) {
+			return cache;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Logger.getGlobal().info(file + " : キャッシュファイルの形式が異なるため破棄します");
+				return cache;
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				final String path = ChartHeader.readString(in);
+				if (path == null) {
+					throw new IOException("譜面ファイルのパスが定義されていません");
+				}
+				final long size = in.readLong();
+				final long lastModified = in.readLong();
+				cache.entries.put(Paths.get(path), new Entry(size, lastModified, new ChartHeader(in)));
+			}
+		} catch (IOException | InvalidPathException e) {
+			Logger.getGlobal().warning(file + " : キャッシュファイルの読み込みに失敗しました : " + e.getMessage());
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * キャッシュファイルに保存する。一時ファイルに書き込んだ後に置き換えるため、
+	 * 保存中に中断しても既存のキャッシュファイルは破損しない
+	 *
+	 * @param file
+	 *            キャッシュファイル
+	 * @throws IOException
+	 *             保存に失敗した場合
+	 */
+	public void save(Path file) throws IOException {
+		final Path dir = file.toAbsolutePath().getParent();
+		final Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			final List<Map.Entry<Path, Entry>> list = new ArrayList<Map.Entry<Path, Entry>>(entries.entrySet());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(list.size());
+				for (Map.Entry<Path, Entry> e : list) {
+					ChartHeader.writeString(out, e.getKey().toString());
+					out.writeLong(e.getValue().size);
+					out.writeLong(e.getValue().lastModified);
+					e.getValue().header.write(out);
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static class Entry {
+
+		public final long size;
+		public final long lastModified;
+		public final ChartHeader header;
+
+		public Entry(long size, long lastModified, ChartHeader header) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.header = header;
+		}
+	}
+}
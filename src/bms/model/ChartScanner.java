@@ -0,0 +1,335 @@
+package bms.model;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static bms.model.DecodeLog.State.*;
+
+/**
+ * 指定フォルダ以下の譜面ファイル(.bms, .bme, .bml, .pms, .bmson)を複数スレッドでデコードするスキャナ。
+ * デコーダーは全スレッドで共有し、デコード中の作業領域はスレッドごとに再利用する。
+ * 未処理の譜面数には上限があり、デコードが追いつかない場合はフォルダの走査を待機する。
+ * ヘッダ情報のみのスキャンでは、ChartHeaderCacheを設定すると変更のない譜面のデコードを省略する
+ *
+ * @author exch
+ */
+public class ChartScanner {
+
+	private final int threads;
+	private final int lntype;
+
+	private final BMSDecoder bmsdecoder;
+	private final BMSONDecoder bmsondecoder;
+
+	/**
+	 * ヘッダ情報のキャッシュ。nullの場合は常にデコードする
+	 */
+	private ChartHeaderCache headerCache;
+
+	public ChartScanner() {
+		this(Runtime.getRuntime().availableProcessors(), BMSModel.LNTYPE_LONGNOTE);
+	}
+
+	/**
+	 * @param threads
+	 *            デコードに使用するスレッド数
+	 * @param lntype
+	 *            LNタイプ
+	 */
+	public ChartScanner(int threads, int lntype) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.threads = threads;
+		this.lntype = lntype;
+		bmsdecoder = new BMSDecoder(lntype);
+		// 同一フォルダの譜面は同じ文字コードであることが多いため、推測結果をスキャン全体で共有する
+		bmsdecoder.setEncodingHintCache(new EncodingHintCache());
+		bmsondecoder = new BMSONDecoder(lntype);
+	}
+
+	/**
+	 * 指定フォルダ以下の譜面ファイルをすべてデコードし、1譜面ごとに結果を通知する。
+	 * 通知はデコードを行ったスレッドから呼び出されるため、callbackはスレッドセーフであること。
+	 * すべての譜面の通知が完了するまで戻らない
+	 *
+	 * @param callback
+	 *            デコード結果の通知先
+	 * @param roots
+	 *            走査するフォルダ
+	 * @throws InterruptedException
+	 *             待機中に割り込まれた場合
+	 */
+	public void scan(Consumer<Result> callback, Path... roots) throws InterruptedException {
+		run((decoder, file, attrs) -> () -> callback.accept(decode(decoder, file)), roots);
+	}
+
+	/**
+	 * 指定フォルダ以下の譜面ファイルのハッシュ値とヘッダ情報を取得し、1譜面ごとに結果を通知する。
+	 * ヘッダ情報のキャッシュが設定されている場合、サイズと更新日時が一致する譜面はデコードせずにキャッシュから通知し、
+	 * デコードした譜面はキャッシュに登録する。走査したフォルダ以下に存在しなくなった譜面はキャッシュから削除する。
+	 * 通知は走査スレッドまたはデコードを行ったスレッドから呼び出されるため、callbackはスレッドセーフであること
+	 *
+	 * @param callback
+	 *            ヘッダ情報の通知先
+	 * @param roots
+	 *            走査するフォルダ
+	 * @throws InterruptedException
+	 *             待機中に割り込まれた場合
+	 */
+	public void scanHeaders(Consumer<HeaderResult> callback, Path... roots) throws InterruptedException {
+		final ChartHeaderCache cache = headerCache;
+		final Set<Path> found = ConcurrentHashMap.newKeySet();
+		run((decoder, file, attrs) -> {
+			final long size = attrs.size();
+			final long lastModified = attrs.lastModifiedTime().toMillis();
+			if (cache != null) {
+				found.add(file);
+				final ChartHeader header = cache.get(file, size, lastModified, lntype);
+				if (header != null) {
+					callback.accept(new HeaderResult(file, header, true, 0));
+					return null;
+				}
+			}
+			return () -> {
+				final long time = System.nanoTime();
+				ChartHeader header = null;
+				try {
+					header = decoder.decodeHeader(new ChartInformation(file, lntype, null));
+				} catch (RuntimeException e) {
+					Logger.getGlobal().severe(file + ":譜面ファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
+				}
+				if (cache != null && header != null) {
+					cache.put(file, size, lastModified, header);
+				}
+				callback.accept(new HeaderResult(file, header, false, System.nanoTime() - time));
+			};
+		}, roots);
+
+		if (cache != null && !Thread.currentThread().isInterrupted()) {
+			for (Path path : cache.getPaths()) {
+				if (!found.contains(path)) {
+					for (Path root : roots) {
+						if (path.startsWith(root.toAbsolutePath().normalize())) {
+							cache.remove(path);
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 指定フォルダ以下の譜面ファイルごとに処理を行う。
+	 * taskが返した処理をスレッドプールで実行し、すべての処理が完了するまで戻らない
+	 */
+	private void run(FileTask task, Path... roots) throws InterruptedException {
+		final int capacity = threads * 4;
+		final Semaphore pending = new Semaphore(capacity);
+		final ExecutorService executor = Executors.newWorkStealingPool(threads);
+		try {
+			for (Path root : roots) {
+				walk(root.toAbsolutePath().normalize(), executor, pending, task);
+			}
+			// 全タスクの完了を待つ
+			pending.acquire(capacity);
+			pending.release(capacity);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void walk(Path root, ExecutorService executor, Semaphore pending, FileTask task)
+			throws InterruptedException {
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					final ChartDecoder decoder = getDecoder(file);
+					if (decoder == null) {
+						return FileVisitResult.CONTINUE;
+					}
+					final Runnable runnable;
+					try {
+						runnable = task.create(decoder, file, attrs);
+					} catch (RuntimeException e) {
+						Logger.getGlobal().severe(file + ":譜面スキャン中の例外 : " + e.getClass().getName() + " - "
+								+ e.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+					if (runnable == null) {
+						return FileVisitResult.CONTINUE;
+					}
+					try {
+						pending.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return FileVisitResult.TERMINATE;
+					}
+					executor.execute(() -> {
+						try {
+							runnable.run();
+						} catch (RuntimeException e) {
+							Logger.getGlobal().severe(file + ":譜面スキャン中の例外 : " + e.getClass().getName() + " - "
+									+ e.getMessage());
+						} finally {
+							pending.release();
+						}
+					});
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					Logger.getGlobal().warning(file + ":ファイルにアクセスできません : " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			Logger.getGlobal().warning(root + ":フォルダの走査に失敗しました : " + e.getMessage());
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	private Result decode(ChartDecoder decoder, Path path) {
+		final long time = System.nanoTime();
+		try {
+			final DecodeResult result = decoder.decodeWithLog(new ChartInformation(path, lntype, null));
+			return new Result(path, result.getModel(), result.getDecodeLog(), System.nanoTime() - time);
+		} catch (RuntimeException e) {
+			Logger.getGlobal().severe(path + ":譜面ファイル解析失敗: " + e.getClass().getName() + " - " + e.getMessage());
+			return new Result(path, null, new DecodeLog[] { new DecodeLog(ERROR, "何らかの異常により譜面解析に失敗しました") },
+					System.nanoTime() - time);
+		}
+	}
+
+	/**
+	 * 譜面ファイルに対応する共有デコーダーを取得する
+	 *
+	 * @return 対応するデコーダー。譜面ファイルでない場合はnull
+	 */
+	private ChartDecoder getDecoder(Path p) {
+		final String s = p.getFileName().toString().toLowerCase();
+		if (s.endsWith(".bms") || s.endsWith(".bme") || s.endsWith(".bml") || s.endsWith(".pms")) {
+			return bmsdecoder;
+		} else if (s.endsWith(".bmson")) {
+			return bmsondecoder;
+		}
+		return null;
+	}
+
+	public ChartHeaderCache getHeaderCache() {
+		return headerCache;
+	}
+
+	/**
+	 * ヘッダ情報のみのスキャンで使用するキャッシュを設定する
+	 *
+	 * @param headerCache
+	 *            キャッシュ。nullの場合はキャッシュを使用しない
+	 */
+	public void setHeaderCache(ChartHeaderCache headerCache) {
+		this.headerCache = headerCache;
+	}
+
+	/**
+	 * 譜面ファイルごとの処理
+	 */
+	private interface FileTask {
+		/**
+		 * スレッドプールで実行する処理を作成する。走査スレッドから呼び出される
+		 *
+		 * @return 実行する処理。不要な場合はnull
+		 */
+		Runnable create(ChartDecoder decoder, Path file, BasicFileAttributes attrs);
+	}
+
+	/**
+	 * 1譜面のデコード結果
+	 */
+	public static class Result extends DecodeResult {
+
+		private final Path path;
+		/**
+		 * デコードに要した時間(ns)
+		 */
+		private final long time;
+
+		public Result(Path path, BMSModel model, DecodeLog[] log, long time) {
+			super(model, log);
+			this.path = path;
+			this.time = time;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * デコードに要した時間を取得する
+		 *
+		 * @return デコード時間(ns)
+		 */
+		public long getTime() {
+			return time;
+		}
+	}
+
+	/**
+	 * 1譜面のヘッダ情報の取得結果
+	 */
+	public static class HeaderResult {
+
+		private final Path path;
+		private final ChartHeader header;
+		private final boolean cached;
+		private final long time;
+
+		public HeaderResult(Path path, ChartHeader header, boolean cached, long time) {
+			this.path = path;
+			this.header = header;
+			this.cached = cached;
+			this.time = time;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * ヘッダ情報を取得する
+		 *
+		 * @return ヘッダ情報。デコードに失敗した場合はnull
+		 */
+		public ChartHeader getHeader() {
+			return header;
+		}
+
+		/**
+		 * キャッシュから取得したかどうか
+		 */
+		public boolean isCached() {
+			return cached;
+		}
+
+		/**
+		 * デコードに要した時間を取得する
+		 *
+		 * @return デコード時間(ns)。キャッシュから取得した場合は0
+		 */
+		public long getTime() {
+			return time;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package bms.model;
+
+/**
+ * BMSModelの全TimeLineから算出する統計値。全TimeLineを1回走査してまとめて算出する。
+ * BMSModelが保持し、TimeLineの構成、またはBMSModelに設定したTimeLineを変更した時に破棄される
+ *
+ * @author exch
+ */
+public final class ChartStatistics {
+
+	private final double minbpm;
+	private final double maxbpm;
+	/**
+	 * 最後にノート、BGノート、BGAのいずれかが存在するTimeLineの時間(ms)
+	 */
+	private final long lasttime;
+	/**
+	 * 最後にノートが存在するTimeLineの時間(ms)
+	 */
+	private final long lastnotetime;
+	private final int totalnotes;
+	private final boolean longnote;
+	private final boolean minenote;
+	private final boolean undefinedlongnote;
+
+	ChartStatistics(BMSModel model) {
+		final int keys = model.getMode().key;
+		final int lntype = model.getLntype();
+		double minbpm = model.getBpm();
+		double maxbpm = model.getBpm();
+		long lasttime = 0;
+		long lastnotetime = 0;
+		int totalnotes = 0;
+		boolean longnote = false;
+		boolean minenote = false;
+		boolean undefinedlongnote = false;
+
+		for (TimeLine tl : model.getAllTimeLines()) {
+			final double d = tl.getBPM();
+			minbpm = (minbpm <= d) ? minbpm : d;
+			maxbpm = (maxbpm >= d) ? maxbpm : d;
+
+			if (tl.getTime() >= 0 && tl.getTime() < Integer.MAX_VALUE) {
+				totalnotes += tl.getTotalNotes(lntype);
+			}
+
+			boolean existnote = false;
+			boolean existhidden = false;
+			for (int lane = 0; lane < keys; lane++) {
+				final Note note = tl.getNote(lane);
+				if (note != null) {
+					existnote = true;
+					if (note instanceof LongNote) {
+						longnote = true;
+						if (((LongNote) note).getType() == LongNote.TYPE_UNDEFINED) {
+							undefinedlongnote = true;
+						}
+					} else if (note instanceof MineNote) {
+						minenote = true;
+					}
+				}
+				if (tl.getHiddenNote(lane) != null) {
+					existhidden = true;
+				}
+			}
+			if (existnote) {
+				lastnotetime = tl.getMilliTime();
+			}
+			if (keys > 0 && (existnote || existhidden || tl.getBackGroundNotes().length > 0 || tl.getBGA() != -1
+					|| tl.getLayer() != -1)) {
+				lasttime = tl.getMilliTime();
+			}
+		}
+
+		this.minbpm = minbpm;
+		this.maxbpm = maxbpm;
+		this.lasttime = lasttime;
+		this.lastnotetime = lastnotetime;
+		this.totalnotes = totalnotes;
+		this.longnote = longnote;
+		this.minenote = minenote;
+		this.undefinedlongnote = undefinedlongnote;
+	}
+
+	public double getMinBPM() {
+		return minbpm;
+	}
+
+	public double getMaxBPM() {
+		return maxbpm;
+	}
+
+	/**
+	 * 最後にノート、BGノート、BGAのいずれかが存在するTimeLineの時間を取得する
+	 *
+	 * @return 時間(ms)
+	 */
+	public long getLastMilliTime() {
+		return lasttime;
+	}
+
+	/**
+	 * 最後にノートが存在するTimeLineの時間を取得する
+	 *
+	 * @return 時間(ms)
+	 */
+	public long getLastNoteMilliTime() {
+		return lastnotetime;
+	}
+
+	public int getTotalNotes() {
+		return totalnotes;
+	}
+
+	public boolean containsLongNote() {
+		return longnote;
+	}
+
+	public boolean containsMineNote() {
+		return minenote;
+	}
+
+	public boolean containsUndefinedLongNote() {
+		return undefinedlongnote;
+	}
+}
@@ -0,0 +1,250 @@
+package bms.model;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * BMSModelの演奏ノートを、ノートごとの値をプリミティブ配列に並べた形式(列指向)で保持する読み取り専用のビュー。
+ * TimeLineとNoteの参照をたどらずに連続したメモリを走査できるため、判定、描画、譜面解析など
+ * 全ノートを繰り返し走査する処理で使用する。
+ *
+ * ノートはTimeLineの順、同一TimeLine内ではレーン番号の順に並び、インデックスで参照する。
+ * 対象はTimeLine.getNote()で取得できるノートのみで、不可視ノート、BGノート、同時演奏ノートは含まない。
+ * 作成後にBMSModelを変更しても反映されない
+ *
+ * @author exch
+ */
+public final class ColumnarChart {
+
+	/**
+	 * ノートの種類:通常ノート
+	 */
+	public static final int TYPE_NORMAL = 0;
+	/**
+	 * ノートの種類:ロングノート始点
+	 */
+	public static final int TYPE_LONGNOTE_START = 1;
+	/**
+	 * ノートの種類:ロングノート終端
+	 */
+	public static final int TYPE_LONGNOTE_END = 2;
+	/**
+	 * ノートの種類:地雷ノート
+	 */
+	public static final int TYPE_MINE = 3;
+
+	private final int size;
+	/**
+	 * ノートの時間(us)
+	 */
+	private final long[] times;
+	private final int[] lanes;
+	private final int[] wavs;
+	private final byte[] types;
+	/**
+	 * ロングノートのペアのインデックス。ロングノート以外、またはペアが存在しない場合は-1
+	 */
+	private final int[] pairs;
+	/**
+	 * ロングノートの種類(LongNote.TYPE_*)。ロングノート以外は0
+	 */
+	private final byte[] lntypes;
+	/**
+	 * 地雷ノートのダメージ量。地雷ノート以外は0
+	 */
+	private final double[] damages;
+	/**
+	 * ノートが配置されているTimeLineのインデックス
+	 */
+	private final int[] timelines;
+	private final Note[] notes;
+
+	/**
+	 * レーンごとのノートのインデックス
+	 */
+	private final int[][] lanenotes;
+	/**
+	 * TimeLineの時間(us)
+	 */
+	private final long[] timelinetimes;
+
+	public ColumnarChart(BMSModel model) {
+		final TimeLine[] tls = model.getAllTimeLines();
+		final int keys = model.getMode().key;
+		int count = 0;
+		final int[] lanecount = new int[keys];
+		for (TimeLine tl : tls) {
+			for (int lane = 0; lane < keys; lane++) {
+				if (tl.getNote(lane) != null) {
+					count++;
+					lanecount[lane]++;
+				}
+			}
+		}
+
+		size = count;
+		times = new long[count];
+		lanes = new int[count];
+		wavs = new int[count];
+		types = new byte[count];
+		pairs = new int[count];
+		lntypes = new byte[count];
+		damages = new double[count];
+		timelines = new int[count];
+		notes = new Note[count];
+		lanenotes = new int[keys][];
+		for (int lane = 0; lane < keys; lane++) {
+			lanenotes[lane] = new int[lanecount[lane]];
+			lanecount[lane] = 0;
+		}
+		timelinetimes = new long[tls.length];
+
+		final Map<Note, Integer> indexes = new IdentityHashMap<Note, Integer>(count);
+		int index = 0;
+		for (int t = 0; t < tls.length; t++) {
+			final TimeLine tl = tls[t];
+			timelinetimes[t] = tl.getMicroTime();
+			for (int lane = 0; lane < keys; lane++) {
+				final Note note = tl.getNote(lane);
+				if (note == null) {
+					continue;
+				}
+				times[index] = note.getMicroTime();
+				lanes[index] = lane;
+				wavs[index] = note.getWav();
+				timelines[index] = t;
+				notes[index] = note;
+				if (note instanceof LongNote) {
+					final LongNote ln = (LongNote) note;
+					types[index] = (byte) (ln.isEnd() ? TYPE_LONGNOTE_END : TYPE_LONGNOTE_START);
+					lntypes[index] = (byte) ln.getType();
+				} else if (note instanceof MineNote) {
+					types[index] = TYPE_MINE;
+					damages[index] = ((MineNote) note).getDamage();
+				} else {
+					types[index] = TYPE_NORMAL;
+				}
+				lanenotes[lane][lanecount[lane]++] = index;
+				indexes.put(note, index);
+				index++;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			final Integer pair = notes[i] instanceof LongNote ? indexes.get(((LongNote) notes[i]).getPair()) : null;
+			pairs[i] = pair != null ? pair : -1;
+		}
+	}
+
+	/**
+	 * ノート数を取得する
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * ノートの時間を取得する
+	 *
+	 * @return 時間(us)
+	 */
+	public long getMicroTime(int index) {
+		return times[index];
+	}
+
+	public int getLane(int index) {
+		return lanes[index];
+	}
+
+	public int getWav(int index) {
+		return wavs[index];
+	}
+
+	/**
+	 * ノートの種類を取得する
+	 *
+	 * @return ノートの種類(TYPE_*)
+	 */
+	public int getType(int index) {
+		return types[index];
+	}
+
+	/**
+	 * ロングノートのペアのインデックスを取得する
+	 *
+	 * @return ペアのインデックス。ロングノート以外、またはペアが存在しない場合は-1
+	 */
+	public int getPair(int index) {
+		return pairs[index];
+	}
+
+	/**
+	 * ロングノートの種類を取得する
+	 *
+	 * @return ロングノートの種類(LongNote.TYPE_*)。ロングノート以外は0
+	 */
+	public int getLongNoteType(int index) {
+		return lntypes[index];
+	}
+
+	/**
+	 * 地雷ノートのダメージ量を取得する
+	 *
+	 * @return ダメージ量。地雷ノート以外は0
+	 */
+	public double getDamage(int index) {
+		return damages[index];
+	}
+
+	/**
+	 * ノートが配置されているTimeLineのインデックスを取得する
+	 *
+	 * @return BMSModel.getAllTimeLines()のインデックス
+	 */
+	public int getTimeLineIndex(int index) {
+		return timelines[index];
+	}
+
+	/**
+	 * 元のNoteを取得する
+	 */
+	public Note getNote(int index) {
+		return notes[index];
+	}
+
+	/**
+	 * レーン数を取得する
+	 */
+	public int getLaneCount() {
+		return lanenotes.length;
+	}
+
+	/**
+	 * レーンのノート数を取得する
+	 */
+	public int getLaneNoteCount(int lane) {
+		return lanenotes[lane].length;
+	}
+
+	/**
+	 * レーンのn番目のノートのインデックスを取得する
+	 */
+	public int getLaneNote(int lane, int n) {
+		return lanenotes[lane][n];
+	}
+
+	/**
+	 * TimeLine数を取得する
+	 */
+	public int getTimeLineCount() {
+		return timelinetimes.length;
+	}
+
+	/**
+	 * TimeLineの時間を取得する
+	 *
+	 * @return 時間(us)
+	 */
+	public long getTimeLineMicroTime(int timeline) {
+		return timelinetimes[timeline];
+	}
+}
@@ -0,0 +1,30 @@
+package bms.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * デコード中の状態を保持する作業領域。デコーダーはスレッドごとに1つ保持して譜面ごとに再利用するため、
+ * 1つのデコーダーを複数スレッドで共有できる
+ *
+ * @author exch
+ */
+class DecodeContext {
+
+	/**
+	 * デコードログ
+	 */
+	final List<DecodeLog> log = new ArrayList<DecodeLog>();
+	/**
+	 * デコード中の譜面のLNタイプ
+	 */
+	int lntype;
+
+	/**
+	 * 新たな譜面のデコードを開始する
+	 */
+	void reset(int lntype) {
+		log.clear();
+		this.lntype = lntype;
+	}
+}
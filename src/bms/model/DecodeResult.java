@@ -0,0 +1,30 @@
+package bms.model;
+
+/**
+ * デコード結果。BMSModelとデコードログの組
+ *
+ * @author exch
+ */
+public class DecodeResult {
+
+	private final BMSModel model;
+	private final DecodeLog[] log;
+
+	public DecodeResult(BMSModel model, DecodeLog[] log) {
+		this.model = model;
+		this.log = log;
+	}
+
+	/**
+	 * デコードしたBMSModelを取得する
+	 *
+	 * @return BMSModel。デコードに失敗した場合はnull
+	 */
+	public BMSModel getModel() {
+		return model;
+	}
+
+	public DecodeLog[] getDecodeLog() {
+		return log;
+	}
+}
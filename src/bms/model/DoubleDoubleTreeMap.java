@@ -0,0 +1,89 @@
+package bms.model;
+
+import java.util.Arrays;
+
+/**
+ * double key / double value に特化した小さな sorted map。
+ * Section の BPM変化、ストップ、スクロール、スピード変化の保持で boxing と TreeMap のノード生成を避けるために使う。
+ * キーの順序は Double.compare に従う。
+ */
+public final class DoubleDoubleTreeMap {
+
+	private static final double[] EMPTY = new double[0];
+
+	private double[] keys = EMPTY;
+	private double[] values = EMPTY;
+	private int size;
+
+	public DoubleDoubleTreeMap() {
+	}
+
+	public DoubleDoubleTreeMap(int capacity) {
+		keys = new double[capacity];
+		values = new double[capacity];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void put(double key, double value) {
+		int index = indexOf(key);
+		if(index >= 0) {
+			values[index] = value;
+			return;
+		}
+
+		index = -index - 1;
+		ensureCapacity(size + 1);
+		if(index < size) {
+			System.arraycopy(keys, index, keys, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+		}
+		keys[index] = key;
+		values[index] = value;
+		size++;
+	}
+
+	public int indexOf(double key) {
+		// 定義順に末尾へ追加されることが多いため、先に末尾と比較する
+		if(size > 0 && Double.compare(keys[size - 1], key) < 0) {
+			return -(size + 1);
+		}
+		int low = 0;
+		int high = size - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = Double.compare(keys[mid], key);
+			if(cmp < 0) {
+				low = mid + 1;
+			} else if(cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	public double keyAt(int index) {
+		return keys[index];
+	}
+
+	public double valueAt(int index) {
+		return values[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity <= keys.length) {
+			return;
+		}
+		int newCapacity = Math.max(Math.max(capacity, keys.length * 2), 4);
+		keys = Arrays.copyOf(keys, newCapacity);
+		values = Arrays.copyOf(values, newCapacity);
+	}
+}
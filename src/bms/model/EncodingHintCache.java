@@ -0,0 +1,36 @@
+package bms.model;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * フォルダごとの文字コード推測結果のキャッシュ。
+ * 同一フォルダの譜面はほぼ同じ文字コードで書かれているため、BMSDecoderでの一括デコード時に
+ * 前回の推測結果を先に検証し、一致しない場合のみ推測をやり直す。複数のBMSDecoderで共有できる
+ *
+ * @author exch
+ */
+public class EncodingHintCache {
+
+	private final Map<Path, String> hints = new ConcurrentHashMap<Path, String>();
+
+	/**
+	 * 指定したフォルダの文字コードを取得する
+	 *
+	 * @param dir
+	 *            譜面フォルダ
+	 * @return 文字コード名。未登録の場合はnull
+	 */
+	public String get(Path dir) {
+		return hints.get(dir);
+	}
+
+	public void put(Path dir, String encoding) {
+		hints.put(dir, encoding);
+	}
+
+	public void clear() {
+		hints.clear();
+	}
+}
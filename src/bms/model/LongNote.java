@@ -68,6 +68,14 @@ public class LongNote extends Note {
 		type = pair.type = (type != TYPE_UNDEFINED ? type : pair.type);
 	}
 	
+	/**
+	 * ペアと終端かどうかを保存時の値のまま設定する。BMSModelSerializerでの復元に使用する
+	 */
+	void restorePair(LongNote pair, boolean end) {
+		this.pair = pair;
+		this.end = end;
+	}
+
 	public LongNote getPair() {
 		return pair;
 	}
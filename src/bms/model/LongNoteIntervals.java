@@ -0,0 +1,108 @@
+package bms.model;
+
+import java.util.Arrays;
+
+/**
+ * 1レーン分のLNの区間(始点から終点までのセクション)を保持し、位置がLN内かどうかを二分探索で判定するクラス。
+ * 始点順と終点順の配列を持ち、始点順の配列にはそこまでの終点の最大値を保持するため、区間が重なっていても正しく判定できる。
+ * LNは追加時のペアのセクションを終点とするため、ペアを設定してから追加すること
+ *
+ * @author exch
+ */
+public final class LongNoteIntervals {
+
+	private int size;
+	/**
+	 * 始点の昇順に並べた始点。同一の始点は追加順
+	 */
+	private double[] starts;
+	/**
+	 * starts[0]からstarts[i]までの区間の終点の最大値
+	 */
+	private double[] maxends;
+	/**
+	 * 終点の昇順に並べた終点。同一の終点は追加順
+	 */
+	private double[] ends;
+	private LongNote[] endnotes;
+
+	public LongNoteIntervals() {
+		this(16);
+	}
+
+	public LongNoteIntervals(int capacity) {
+		starts = new double[capacity];
+		maxends = new double[capacity];
+		ends = new double[capacity];
+		endnotes = new LongNote[capacity];
+	}
+
+	public void add(LongNote ln) {
+		final double start = ln.getSection();
+		final double end = ln.getPair().getSection();
+		if (size == starts.length) {
+			final int capacity = Math.max(16, size * 2);
+			starts = Arrays.copyOf(starts, capacity);
+			maxends = Arrays.copyOf(maxends, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			endnotes = Arrays.copyOf(endnotes, capacity);
+		}
+
+		int index = upperBound(starts, start, true);
+		System.arraycopy(starts, index, starts, index + 1, size - index);
+		System.arraycopy(maxends, index, maxends, index + 1, size - index);
+		starts[index] = start;
+		maxends[index] = index > 0 ? Math.max(maxends[index - 1], end) : end;
+		for (int i = index + 1; i <= size && maxends[i] < end; i++) {
+			maxends[i] = end;
+		}
+
+		index = upperBound(ends, end, true);
+		System.arraycopy(ends, index, ends, index + 1, size - index);
+		System.arraycopy(endnotes, index, endnotes, index + 1, size - index);
+		ends[index] = end;
+		endnotes[index] = ln;
+		size++;
+	}
+
+	/**
+	 * 指定のセクションを含むLNが存在するかどうかを返す
+	 *
+	 * @param section
+	 *            セクション
+	 * @param includeStart
+	 *            LNの始点と同じ位置をLN内とみなす場合はtrue
+	 * @return LN内の場合はtrue
+	 */
+	public boolean contains(double section, boolean includeStart) {
+		final int index = upperBound(starts, section, includeStart) - 1;
+		return index >= 0 && section <= maxends[index];
+	}
+
+	/**
+	 * 終点が指定のセクションにあるLNのうち、最初に追加されたものを返す
+	 *
+	 * @return LN。存在しない場合はnull
+	 */
+	public LongNote getByEnd(double section) {
+		final int index = upperBound(ends, section, false);
+		return index < size && ends[index] == section ? endnotes[index] : null;
+	}
+
+	/**
+	 * inclusiveの場合はvalueより大きい最初の要素の位置を、そうでない場合はvalue以上の最初の要素の位置を返す
+	 */
+	private int upperBound(double[] array, double value, boolean inclusive) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (array[mid] < value || (inclusive && array[mid] == value)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
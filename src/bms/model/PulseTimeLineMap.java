@@ -0,0 +1,174 @@
+package bms.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import bms.model.TimeLineTreeMap.TimeLineEntry;
+
+/**
+ * TimeLineEntry に特化した int key(bmsonのパルス位置) の sorted map。
+ * BMSONDecoder の TimeLineEntry 参照で Integer boxing と TreeMap のノード生成を避けるために使う。
+ * 使用するパルス位置を事前に reserve しておくと、TimeLineEntry 追加時に配列の挿入が発生しない。
+ * index は reserve した位置を含むため、valueAt は未追加の位置に対して null を返す
+ */
+public final class PulseTimeLineMap {
+
+	/**
+	 * 既定の容量
+	 */
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	private int[] keys;
+	private TimeLineEntry[] values;
+	/**
+	 * keys の要素数
+	 */
+	private int length;
+	/**
+	 * TimeLineEntry を追加済みの index
+	 */
+	private BitSet defined = new BitSet();
+	/**
+	 * TimeLineEntry の数
+	 */
+	private int size;
+
+	public PulseTimeLineMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PulseTimeLineMap(int capacity) {
+		keys = new int[capacity];
+		values = new TimeLineEntry[capacity];
+	}
+
+	public void clear() {
+		Arrays.fill(values, 0, length, null);
+		defined.clear();
+		length = 0;
+		size = 0;
+	}
+
+	/**
+	 * 全要素を削除する。既定の容量を超えて拡張した領域は解放する
+	 */
+	public void release() {
+		if (keys.length <= DEFAULT_CAPACITY) {
+			clear();
+			return;
+		}
+		keys = new int[DEFAULT_CAPACITY];
+		values = new TimeLineEntry[DEFAULT_CAPACITY];
+		defined = new BitSet();
+		length = 0;
+		size = 0;
+	}
+
+	/**
+	 * 使用するパルス位置を登録する。clear 直後に呼び出すこと
+	 *
+	 * @param pulses
+	 *            パルス位置。先頭から count 個を並べ替える
+	 * @param count
+	 *            パルス位置の数
+	 */
+	public void reserve(int[] pulses, int count) {
+		Arrays.sort(pulses, 0, count);
+		ensureCapacity(count);
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (n == 0 || keys[n - 1] != pulses[i]) {
+				keys[n++] = pulses[i];
+			}
+		}
+		length = n;
+	}
+
+	public void put(int key, double time, TimeLine timeline) {
+		int index = indexOf(key);
+		if (index < 0) {
+			index = -index - 1;
+			ensureCapacity(length + 1);
+			if (index < length) {
+				System.arraycopy(keys, index, keys, index + 1, length - index);
+				System.arraycopy(values, index, values, index + 1, length - index);
+				for (int i = length; i > index; i--) {
+					defined.set(i, values[i] != null);
+				}
+			}
+			keys[index] = key;
+			values[index] = null;
+			defined.clear(index);
+			length++;
+		}
+		if (values[index] == null) {
+			size++;
+			defined.set(index);
+		}
+		values[index] = new TimeLineEntry(time, timeline);
+	}
+
+	public TimeLineEntry get(int key) {
+		final int index = indexOf(key);
+		return index >= 0 ? values[index] : null;
+	}
+
+	public int indexOf(int key) {
+		return Arrays.binarySearch(keys, 0, length, key);
+	}
+
+	/**
+	 * key より小さい位置のうち、TimeLineEntry を追加済みで最大のものの index を返す
+	 *
+	 * @return index。存在しない場合は-1
+	 */
+	public int lowerIndex(int key) {
+		final int index = indexOf(key);
+		final int from = index >= 0 ? index - 1 : -index - 2;
+		return from >= 0 ? defined.previousSetBit(from) : -1;
+	}
+
+	/**
+	 * index より後で TimeLineEntry を追加済みの最初の index を返す
+	 *
+	 * @return index。存在しない場合は-1
+	 */
+	public int nextIndex(int index) {
+		return defined.nextSetBit(index + 1);
+	}
+
+	public int keyAt(int index) {
+		return keys[index];
+	}
+
+	public TimeLineEntry valueAt(int index) {
+		return values[index];
+	}
+
+	/**
+	 * 追加済みの TimeLineEntry の数を返す
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 追加済みの TimeLine をパルス位置の昇順で返す
+	 */
+	public TimeLine[] toTimeLineArray() {
+		final TimeLine[] result = new TimeLine[size];
+		for (int i = defined.nextSetBit(0), n = 0; i >= 0; i = defined.nextSetBit(i + 1)) {
+			result[n++] = values[i].timeline;
+		}
+		return result;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= keys.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, keys.length * 2);
+		keys = Arrays.copyOf(keys, newCapacity);
+		values = Arrays.copyOf(values, newCapacity);
+	}
+}
@@ -1,7 +1,6 @@
 package bms.model;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 import bms.model.Layer.EventType;
 import bms.model.TimeLineTreeMap.TimeLineEntry;
@@ -55,25 +54,32 @@ public class Section {
 
 	private final List<DecodeLog> log;
 	
-	private List<String> channellines;
+	private final ChannelEventStore events;
+	/**
+	 * TimeLine生成時に処理する定義行
+	 */
+	private final int[] channelevents;
+	private int channeleventCount;
 
-	public Section(BMSModel model, Section prev, List<String> lines, IntDoubleTreeMap bpmtable,
+	Section(BMSModel model, Section prev, ChannelEventStore events, int bar, IntDoubleTreeMap bpmtable,
 			IntDoubleTreeMap stoptable, IntDoubleTreeMap scrolltable, IntDoubleTreeMap speedtable, List<DecodeLog> log) {
 		this.model = model;
 		this.log = log;
+		this.events = events;
 		final int base = model.getBase();
 		
-		channellines = new ArrayList<String>(lines.size());
+		channelevents = new int[events.end(bar) - events.begin(bar)];
 		if (prev != null) {
 			sectionnum = prev.sectionnum + prev.rate;
 		} else {
 			sectionnum = 0;
 		}
-		for (String line : lines) {
-			int channel = ChartDecoder.parseInt36(line.charAt(4), line.charAt(5));
+		for (int index = events.begin(bar); index < events.end(bar); index++) {
+			final int line = events.event(index);
+			int channel = events.channel(line);
 			switch (channel) {
 			case ILLEGAL:
-				log.add(new DecodeLog(WARNING, "チャンネル定義が無効です : " + line));
+				log.add(new DecodeLog(WARNING, "チャンネル定義が無効です : " + events.line(line)));
 				break;
 			// BGレーン
 			case LANE_AUTOPLAY:
@@ -81,25 +87,26 @@ public class Section {
 			case BGA_PLAY:
 			// レイヤー
 			case LAYER_PLAY:
-				channellines.add(line);
+				channelevents[channeleventCount++] = line;
 				break;
 			// 小節の拡大率
 			case SECTION_RATE:
-				int colon_index = line.indexOf(":");
 				try {
-					rate = Double.valueOf(line.substring(colon_index + 1, line.length()));					
+					rate = Double.valueOf(events.data(line));
 				} catch (NumberFormatException e) {
-					log.add(new DecodeLog(WARNING, "小節の拡大率が不正です : " + line));
+					log.add(new DecodeLog(WARNING, "小節の拡大率が不正です : " + events.line(line)));
 				}
 				break;
 			// BPM変化
 			case BPM_CHANGE:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					int data = cursor.value();
 					if(base == 62) {
 						data = ChartDecoder.parseInt36(ChartDecoder.toBase62(data), 0); //間違った数値を再計算、62進数文字に戻して36進数数値化。
 					}
 					bpmchange.put(pos, (double) (data / 36) * 16 + (data % 36));
-				});
+				}
 				break;
 			// POORアニメーション
 			case POOR_PLAY:
@@ -122,46 +129,54 @@ public class Section {
 				break;
 			// BPM変化(拡張)
 			case BPM_CHANGE_EXTEND:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					int bpmIndex = bpmtable.indexOf(data);
 					if (bpmIndex >= 0) {
 						bpmchange.put(pos, bpmtable.valueAt(bpmIndex));
 					} else {
 						log.add(new DecodeLog(WARNING, "未定義のBPM変化を参照しています : " + data));
 					}
-				});
+				}
 				break;
 			// ストップシーケンス
 			case STOP:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					final int stopIndex = stoptable.indexOf(data);
 					if (stopIndex >= 0) {
 						stop.put(pos, stoptable.valueAt(stopIndex));
 					} else {
 						log.add(new DecodeLog(WARNING, "未定義のSTOPを参照しています : " + data));
 					}
-				});
+				}
 				break;
 				// scroll
 			case SCROLL:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					final int scrollIndex = scrolltable.indexOf(data);
 					if (scrollIndex >= 0) {
 						scroll.put(pos, scrolltable.valueAt(scrollIndex));
 					} else {
 						log.add(new DecodeLog(WARNING, "未定義のSCROLLを参照しています : " + data));
 					}
-				});
+				}
 				break;
 			case SPEED:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					final int speedIndex = speedtable.indexOf(data);
 					if (speedIndex >= 0) {
 						speed.put(pos, speedtable.valueAt(speedIndex));
 					} else {
 						log.add(new DecodeLog(WARNING, "未定義のSPEEDを参照しています : " + data));
 					}
-				});
+				}
 				break;
 			}
 			
@@ -171,7 +186,7 @@ public class Section {
 				if (ch <= channel && channel <= ch + 8) {
 					basech = ch;
 					ch2 = channel - ch;					
-					channellines.add(line);
+					channelevents[channeleventCount++] = line;
 					break;
 				}				
 			}
@@ -179,71 +194,43 @@ public class Section {
 			if(ch2 == 7 || ch2 == 8) {
 				final Mode mode = (model.getMode() == Mode.BEAT_5K) ? Mode.BEAT_7K : (model.getMode() == Mode.BEAT_10K ? Mode.BEAT_14K : null);
 				if(mode != null) {
-					this.processData(line, (pos, data) -> {
+					for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
 						model.setMode(mode);
-					});
+					}
 				}
 			}
 			// 5/7KEY -> 10/14KEY			
 			if(basech == P2_KEY_BASE || basech == P2_INVISIBLE_KEY_BASE || basech == P2_LONG_KEY_BASE || basech ==P2_MINE_KEY_BASE) {
 				final Mode mode = (model.getMode() == Mode.BEAT_5K) ? Mode.BEAT_10K : (model.getMode() == Mode.BEAT_7K ? Mode.BEAT_14K : null);
 				if(mode != null) {
-					this.processData(line, (pos, data) -> {
+					for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
 						model.setMode(mode);
-					});
+					}
 				}
 			}			
 		}
 	}
 	
-	private int[] splitData(String line) {
-		final int base = model.getBase();
-		final int findex = line.indexOf(":") + 1;
-		final int lindex = line.length();
-		final int split = (lindex - findex) / 2;
-		int[] result = new int[split];
-		for (int i = 0; i < split; i++) {
-			if (base == 62) {
-				result[i] = ChartDecoder.parseInt62(line.charAt(findex + i * 2), line.charAt(findex + i * 2 + 1));
-			} else {
-				result[i] = ChartDecoder.parseInt36(line.charAt(findex + i * 2), line.charAt(findex + i * 2 + 1));
-			}
-			if(result[i] == -1) {
-				log.add(new DecodeLog(WARNING, model.getTitle() + ":チャンネル定義中の不正な値:" + line));
-				result[i] = 0;
-			}
+	private int[] splitData(int line) {
+		final ChannelDataCursor cursor = cursor(line);
+		int[] result = new int[cursor.split()];
+		while (cursor.nextSlot()) {
+			result[cursor.index()] = cursor.value();
 		}
 		return result;			
 	}
 	
-	private void processData(String line, DataProcessor processor) {
-		final int base = model.getBase();
-		final int findex = line.indexOf(":") + 1;
-		final int lindex = line.length();
-		final int split = (lindex - findex) / 2;
-		int result;
-		for (int i = 0; i < split; i++) {
-			if (base == 62) {
-				result = ChartDecoder.parseInt62(line.charAt(findex + i * 2), line.charAt(findex + i * 2 + 1));
-			} else {
-				result = ChartDecoder.parseInt36(line.charAt(findex + i * 2), line.charAt(findex + i * 2 + 1));
-			}
-			if(result > 0) {
-				processor.process((double)i / split, result);
-			} else if(result == -1){
-				log.add(new DecodeLog(WARNING, model.getTitle() + ":チャンネル定義中の不正な値:" + line));				
-			}
-		}
-	}
-	
-	interface DataProcessor {
-		public void process(double pos, int data);
+	/**
+	 * 定義行のデータ部を読み込むカーソルを返す。カーソルは全Sectionで共有するため、入れ子にして使用しないこと
+	 */
+	private ChannelDataCursor cursor(int line) {
+		return events.cursor().reset(events, line, model, log);
 	}
 
-	private final TreeMap<Double, Double> bpmchange = new TreeMap<Double, Double>();
-	private final TreeMap<Double, Double> stop = new TreeMap<Double, Double>();
-	private final TreeMap<Double, Double> scroll = new TreeMap<Double, Double>();
-	private final TreeMap<Double, Double> speed = new TreeMap<Double, Double>();
+	private final DoubleDoubleTreeMap bpmchange = new DoubleDoubleTreeMap();
+	private final DoubleDoubleTreeMap stop = new DoubleDoubleTreeMap();
+	private final DoubleDoubleTreeMap scroll = new DoubleDoubleTreeMap();
+	private final DoubleDoubleTreeMap speed = new DoubleDoubleTreeMap();
 
 	private static final int[] CHANNELASSIGN_BEAT5 = { 0, 1, 2, 3, 4, 5, -1, -1, -1, 6, 7, 8, 9, 10, 11, -1, -1, -1 };
 	private static final int[] CHANNELASSIGN_BEAT7 = { 0, 1, 2, 3, 4, 7, -1, 5, 6, 8, 9, 10, 11, 12, 15, -1, 13, 14 };
@@ -253,8 +240,11 @@ public class Section {
 
 	/**
 	 * SectionモデルからTimeLineモデルを作成し、BMSModelに登録する
+	 *
+	 * @param notesonly
+	 *            演奏ノートのみを配置する場合はtrue。BGノート、BGA、レイヤー、POORアニメーションは配置しない
 	 */
-	public void makeTimeLines(int[] wavmap, int[] bgamap, TimeLineTreeMap tlcache, List<LongNote>[] lnlist, LongNote[] startln, TimeLine[] lastNoteTimeLine) {
+	void makeTimeLines(int[] wavmap, int[] bgamap, TimeLineTreeMap tlcache, LongNoteIntervals[] lnlist, LongNote[] startln, TimeLine[] lastNoteTimeLine, boolean notesonly) {
 		final int lnobj = model.getLnobj();
 		final int lnmode = model.getLnmode();
 		this.tlcache = tlcache;
@@ -265,7 +255,7 @@ public class Section {
 		final TimeLine basetl = getTimeLine(sectionnum);
 		basetl.setSectionLine(true);
 		
-		if(poor.length > 0) {
+		if(poor.length > 0 && !notesonly) {
 			final Layer.Sequence[] poors = new Layer.Sequence[poor.length + 1];
 			final int poortime = 500;
 			
@@ -280,38 +270,38 @@ public class Section {
 			basetl.setEventlayer(new Layer[] {new Layer(new Layer.Event(EventType.MISS, 1),new Layer.Sequence[][] {poors})});			
 		}
 		// BPM変化。ストップシーケンステーブル準備
-		Iterator<Entry<Double, Double>> stops = stop.entrySet().iterator();			
-		Map.Entry<Double, Double> ste = stops.hasNext() ? stops.next() : null;
-		Iterator<Entry<Double, Double>> bpms = bpmchange.entrySet().iterator();			
-		Map.Entry<Double, Double> bce = bpms.hasNext() ? bpms.next() : null;
-		Iterator<Entry<Double, Double>> scrolls = scroll.entrySet().iterator();			
-		Map.Entry<Double, Double> sce = scrolls.hasNext() ? scrolls.next() : null;
-		Iterator<Entry<Double, Double>> speeds = speed.entrySet().iterator();
-		Map.Entry<Double, Double> spe = speeds.hasNext() ? speeds.next() : null;
+		int stopIndex = 0;
+		int bpmIndex = 0;
+		int scrollIndex = 0;
+		int speedIndex = 0;
 
-		while(ste != null || bce != null || sce != null || spe != null) {
-			final double bc = bce != null ? bce.getKey() : 2;
-			final double st = ste != null ? ste.getKey() : 2;
-			final double sc = sce != null ? sce.getKey() : 2;
-			final double sp = spe != null ? spe.getKey() : 2;
+		while(stopIndex < stop.size() || bpmIndex < bpmchange.size() || scrollIndex < scroll.size() || speedIndex < speed.size()) {
+			final double bc = bpmIndex < bpmchange.size() ? bpmchange.keyAt(bpmIndex) : 2;
+			final double st = stopIndex < stop.size() ? stop.keyAt(stopIndex) : 2;
+			final double sc = scrollIndex < scroll.size() ? scroll.keyAt(scrollIndex) : 2;
+			final double sp = speedIndex < speed.size() ? speed.keyAt(speedIndex) : 2;
 			if(sp <= sc && sp <= st && sp <= bc) {
-				getTimeLine(sectionnum + sp * rate).setSpeedObj(spe.getValue());
-				spe = speeds.hasNext() ? speeds.next() : null;
+				getTimeLine(sectionnum + sp * rate).setSpeedObj(speed.valueAt(speedIndex));
+				speedIndex++;
 			} else if(sc <= st && sc <= bc) {
-				getTimeLine(sectionnum + sc * rate).setScroll(sce.getValue());
-				sce = scrolls.hasNext() ? scrolls.next() : null;
+				getTimeLine(sectionnum + sc * rate).setScroll(scroll.valueAt(scrollIndex));
+				scrollIndex++;
 			} else if(bc <= st) {
-				getTimeLine(sectionnum + bc * rate).setBPM(bce.getValue());
-				bce = bpms.hasNext() ? bpms.next() : null;
+				getTimeLine(sectionnum + bc * rate).setBPM(bpmchange.valueAt(bpmIndex));
+				bpmIndex++;
 			} else if(st <= 1){
-				final TimeLine tl = getTimeLine(sectionnum + ste.getKey() * rate);
-				tl.setStop((long) (1000.0 * 1000 * 60 * 4 * ste.getValue() / (tl.getBPM())));
-				ste = stops.hasNext() ? stops.next() : null;
+				final TimeLine tl = getTimeLine(sectionnum + st * rate);
+				tl.setStop((long) (1000.0 * 1000 * 60 * 4 * stop.valueAt(stopIndex) / (tl.getBPM())));
+				stopIndex++;
 			}
 		}
 		
-		for(String line : channellines) {
-			int channel = ChartDecoder.parseInt36(line.charAt(4), line.charAt(5));
+		for(int index = 0; index < channeleventCount; index++) {
+			final int line = channelevents[index];
+			int channel = events.channel(line);
+			if(notesonly && (channel == LANE_AUTOPLAY || channel == BGA_PLAY || channel == LAYER_PLAY)) {
+				continue;
+			}
 			int tmpkey = 0;
 			if(channel >= P1_KEY_BASE && channel < P1_KEY_BASE + 9) {
 				tmpkey = cassign[channel - P1_KEY_BASE];
@@ -344,7 +334,9 @@ public class Section {
 			}
 			switch (channel) {
 			case P1_KEY_BASE:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					// normal note, lnobj
 					final TimeLine tl = getTimeLine(sectionnum + rate * pos);
 					if (tl.existNote(key)) {
@@ -366,7 +358,7 @@ public class Section {
 								ln.setPair(lnend);
 								
 								if (lnlist[key] == null) {
-									lnlist[key] = new ArrayList<LongNote>();
+									lnlist[key] = new LongNoteIntervals();
 								}
 								lnlist[key].add(ln);
 								lastNoteTimeLine[key] = tl;
@@ -379,7 +371,7 @@ public class Section {
 								((LongNote) note).setPair(lnend);
 								
 								if (lnlist[key] == null) {
-									lnlist[key] = new ArrayList<LongNote>();
+									lnlist[key] = new LongNoteIntervals();
 								}
 								lnlist[key].add((LongNote) note);
 								startln[key] = null;
@@ -393,27 +385,22 @@ public class Section {
 						tl.setNote(key, new NormalNote(wavmap[data]));
 						lastNoteTimeLine[key] = tl;
 					}							
-				});
+				}
 				break;				
 			case P1_INVISIBLE_KEY_BASE:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					getTimeLine(sectionnum + rate * pos).setHiddenNote(key, new NormalNote(wavmap[data]));
-				});
+				}
 				break;				
 			case P1_LONG_KEY_BASE:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					// long note
 					final TimeLine tl = getTimeLine(sectionnum + rate * pos);
-					boolean insideln = false;
-					if (!insideln && lnlist[key] != null) {
-						final double section = tl.getSection();
-						for (LongNote ln : lnlist[key]) {
-							if (ln.getSection() <= section && section <= ln.getPair().getSection()) {
-								insideln = true;
-								break;
-							}
-						}
-					}
+					final boolean insideln = lnlist[key] != null && lnlist[key].contains(tl.getSection(), true);
 
 					if(!insideln) {
 						// LN処理
@@ -455,7 +442,7 @@ public class Section {
 						tl.setNote(key, noteend);
 						((LongNote)note).setPair(noteend);
 						if (lnlist[key] == null) {
-							lnlist[key] = new ArrayList<LongNote>();
+							lnlist[key] = new LongNoteIntervals();
 						}
 						lnlist[key].add((LongNote) note);											
 						
@@ -482,22 +469,16 @@ public class Section {
 									+ (key + 1) + " - Section : " + tl.getSection() + " - Time(ms):" + tl.getTime()));
 						}
 					}
-				});
+				}
 				break;				
 			case P1_MINE_KEY_BASE:
 				// mine note
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					int data = cursor.value();
 					final TimeLine tl = getTimeLine(sectionnum + rate * pos);
-					boolean insideln = tl.existNote(key);
-					if (!insideln && lnlist[key] != null) {
-						final double section = tl.getSection();
-						for (LongNote ln : lnlist[key]) {
-							if (ln.getSection() <= section && section <= ln.getPair().getSection()) {
-								insideln = true;
-								break;
-							}
-						}
-					}
+					final boolean insideln = tl.existNote(key)
+							|| (lnlist[key] != null && lnlist[key].contains(tl.getSection(), true));
 
 					if(!insideln) {
 						if(base == 62) {
@@ -509,23 +490,29 @@ public class Section {
 						log.add(new DecodeLog(WARNING, "地雷ノート追加時に衝突が発生しました : " + (key + 1) + ":"
 								+ tl.getTime()));								
 					}
-				});
+				}
 				break;
 			case LANE_AUTOPLAY:
 				// BGレーン
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					getTimeLine(sectionnum + rate * pos).addBackGroundNote(new NormalNote(wavmap[data]));
-				});
+				}
 				break;
 			case BGA_PLAY:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					getTimeLine(sectionnum + rate * pos).setBGA(bgamap[data]);
-				});
+				}
 				break;
 			case LAYER_PLAY:
-				this.processData(line, (pos, data) -> {
+				for (ChannelDataCursor cursor = cursor(line); cursor.next();) {
+					final double pos = cursor.position();
+					final int data = cursor.value();
 					getTimeLine(sectionnum + rate * pos).setLayer(bgamap[data]);
-				});
+				}
 				break;
 
 			}
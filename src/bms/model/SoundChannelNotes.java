@@ -0,0 +1,145 @@
+package bms.model;
+
+import java.util.Arrays;
+
+import bms.model.bmson.SoundChannel;
+
+/**
+ * bmsonのsound_channel1つ分のノートを、ノートごとのオブジェクトを生成せずにプリミティブ配列で保持するクラス。
+ * 巨大なbmsonでもノート数に比例したオブジェクトを生成しないため、デコード時のメモリ使用量を抑えられる
+ *
+ * @author exch
+ */
+final class SoundChannelNotes {
+
+	/**
+	 * 音源ファイル名
+	 */
+	String name;
+
+	private int size;
+	private int[] x;
+	private int[] y;
+	private int[] l;
+	private int[] t;
+	private boolean[] c;
+	private boolean[] up;
+
+	SoundChannelNotes(String name) {
+		this(name, 16);
+	}
+
+	private SoundChannelNotes(String name, int capacity) {
+		this.name = name;
+		x = new int[capacity];
+		y = new int[capacity];
+		l = new int[capacity];
+		t = new int[capacity];
+		c = new boolean[capacity];
+		up = new boolean[capacity];
+	}
+
+	/**
+	 * ObjectMapperで読み込んだsound_channelから作成する
+	 */
+	SoundChannelNotes(SoundChannel sc) {
+		this(sc.name, sc.notes.length);
+		for (bms.model.bmson.Note n : sc.notes) {
+			add(n.x, n.y, n.l, n.c, n.t, n.up);
+		}
+	}
+
+	void add(int x, int y, int l, boolean c, int t, boolean up) {
+		if (size == this.x.length) {
+			final int capacity = Math.max(16, size * 2);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.l = Arrays.copyOf(this.l, capacity);
+			this.t = Arrays.copyOf(this.t, capacity);
+			this.c = Arrays.copyOf(this.c, capacity);
+			this.up = Arrays.copyOf(this.up, capacity);
+		}
+		this.x[size] = x;
+		this.y[size] = y;
+		this.l[size] = l;
+		this.t[size] = t;
+		this.c[size] = c;
+		this.up[size] = up;
+		size++;
+	}
+
+	/**
+	 * ノートをyの昇順に並べる。同一のyのノートは定義順を保つ
+	 */
+	void sort() {
+		final long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) y[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		final int[] x = new int[size];
+		final int[] y = new int[size];
+		final int[] l = new int[size];
+		final int[] t = new int[size];
+		final boolean[] c = new boolean[size];
+		final boolean[] up = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			final int index = (int) keys[i];
+			x[i] = this.x[index];
+			y[i] = this.y[index];
+			l[i] = this.l[index];
+			t[i] = this.t[index];
+			c[i] = this.c[index];
+			up[i] = this.up[index];
+		}
+		this.x = x;
+		this.y = y;
+		this.l = l;
+		this.t = t;
+		this.c = c;
+		this.up = up;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * レーン番号
+	 */
+	int x(int i) {
+		return x[i];
+	}
+
+	int y(int i) {
+		return y[i];
+	}
+
+	/**
+	 * ノーツの長さ。0の場合は通常ノート
+	 */
+	int l(int i) {
+		return l[i];
+	}
+
+	/**
+	 * 鳴らしている音源の続きから再生するかどうか
+	 */
+	boolean c(int i) {
+		return c[i];
+	}
+
+	/**
+	 * LNの種類
+	 */
+	int t(int i) {
+		return t[i];
+	}
+
+	/**
+	 * LN終端音定義かどうか
+	 */
+	boolean up(int i) {
+		return up[i];
+	}
+}
@@ -18,18 +18,36 @@ public class TimeLine {
 	 */
 	private double section;
 	/**
-	 * タイムライン上に配置されている演奏レーン分のノート。配置されていないレーンにはnullを入れる。
+	 * 演奏レーン数
 	 */
-	private Note[] notes;
-
+	private int lanes;
+	/**
+	 * タイムライン上に配置されているノート。レーン数がMAX_PACKED_LANES以下の場合は、
+	 * notemaskでビットが立っているレーンのノートだけをレーン番号の順に詰めて格納する。
+	 * それより多い場合はレーン数分の配列で、配置されていないレーンにはnullを入れる。
+	 */
+	private Note[] notes = Note.EMPTYARRAY;
+	/**
+	 * ノートが配置されているレーンのビットマスク
+	 */
+	private long notemask;
+	/**
+	 * タイムライン上に配置されている不可視ノート。格納方法はnotesと同じ
+	 */
+	private Note[] hiddennotes = Note.EMPTYARRAY;
 	/**
-	 * タイムライン上に配置されている演奏レーン分の不可視ノート。配置されていないレーンにはnullを入れる。
+	 * 不可視ノートが配置されているレーンのビットマスク
 	 */
-	private Note[] hiddennotes;
+	private long hiddenmask;
 	/**
-	 * タイムライン上に配置されているBGMノート
+	 * タイムライン上に配置されているBGMノート。デコード中は余裕を持った長さで確保し、先頭からbgcount個を使用する。
+	 * BMSModel.setAllTimeLine()またはtrimToSize()でちょうどの長さに切り詰める
 	 */
 	private Note[] bgnotes = Note.EMPTYARRAY;
+	/**
+	 * BGMノート数
+	 */
+	private int bgcount;
 	/**
 	 * 小節線の有無
 	 */
@@ -66,12 +84,20 @@ public class TimeLine {
 	 * POORレイヤー
 	 */
 	private Layer[] eventlayer = Layer.EMPTY;
+	/**
+	 * このTimeLineを保持するBMSModel。統計値に影響する変更時に、BMSModelの統計値を破棄する
+	 */
+	private BMSModel model;
+
+	/**
+	 * ノートを詰めて格納する最大レーン数
+	 */
+	private static final int MAX_PACKED_LANES = 64;
 
 	public TimeLine(double section, long time, int notesize) {
 		this.section = section;
 		this.time = time;
-		notes = new Note[notesize];
-		hiddennotes = new Note[notesize];
+		initLanes(notesize);
 	}
 
 	public int getTime() {
@@ -88,6 +114,7 @@ public class TimeLine {
 
 	protected void setMicroTime(long time) {
 		this.time = time;
+		modified();
 		for(Note n : notes) {
 			if(n != null) {
 				n.setMicroTime(time);
@@ -98,28 +125,101 @@ public class TimeLine {
 				n.setMicroTime(time);
 			}
 		}
-		for(Note n : bgnotes) {
-			n.setMicroTime(time);
+		for(int i = 0;i < bgcount;i++) {
+			bgnotes[i].setMicroTime(time);
 		}
 	}
 
 	public int getLaneCount() {
-		return notes.length;
+		return lanes;
 	}
 	
 	protected void setLaneCount(int lanes) {
-		if(notes.length != lanes) {
-			Note[] newnotes = new Note[lanes];
-			Note[] newhiddennotes = new Note[lanes];
-			for(int i = 0;i < lanes;i++) {
-				if(i < notes.length) {
-					newnotes[i] = notes[i];
-					newhiddennotes[i] = hiddennotes[i];
-				}
+		if(this.lanes != lanes) {
+			final int count = Math.min(this.lanes, lanes);
+			final Note[] oldnotes = new Note[count];
+			final Note[] oldhiddennotes = new Note[count];
+			for(int i = 0;i < count;i++) {
+				oldnotes[i] = getNote(i);
+				oldhiddennotes[i] = getHiddenNote(i);
+			}
+			initLanes(lanes);
+			modified();
+			for(int i = 0;i < count;i++) {
+				notes = put(notes, notemask, i, oldnotes[i]);
+				notemask = mask(notemask, i, oldnotes[i]);
+				hiddennotes = put(hiddennotes, hiddenmask, i, oldhiddennotes[i]);
+				hiddenmask = mask(hiddenmask, i, oldhiddennotes[i]);
+			}
+		}
+	}
+
+	private void initLanes(int lanes) {
+		if(lanes < 0) {
+			throw new NegativeArraySizeException(String.valueOf(lanes));
+		}
+		this.lanes = lanes;
+		notes = lanes > MAX_PACKED_LANES ? new Note[lanes] : Note.EMPTYARRAY;
+		hiddennotes = lanes > MAX_PACKED_LANES ? new Note[lanes] : Note.EMPTYARRAY;
+		notemask = 0;
+		hiddenmask = 0;
+	}
+
+	/**
+	 * 格納されたノートから指定レーンのノートを取得する
+	 */
+	private Note get(Note[] array, long mask, int lane) {
+		if(lane < 0 || lane >= lanes) {
+			throw new ArrayIndexOutOfBoundsException(lane);
+		}
+		if(lanes > MAX_PACKED_LANES) {
+			return array[lane];
+		}
+		final long bit = 1L << lane;
+		return (mask & bit) != 0 ? array[Long.bitCount(mask & (bit - 1))] : null;
+	}
+
+	/**
+	 * 指定レーンのノートを置き換えた配列を返す。配置されているレーン数が変わる場合は新しい配列を返す
+	 */
+	private Note[] put(Note[] array, long mask, int lane, Note note) {
+		if(lane < 0 || lane >= lanes) {
+			throw new ArrayIndexOutOfBoundsException(lane);
+		}
+		if(lanes > MAX_PACKED_LANES) {
+			array[lane] = note;
+			return array;
+		}
+		final long bit = 1L << lane;
+		final int index = Long.bitCount(mask & (bit - 1));
+		if((mask & bit) != 0) {
+			if(note != null) {
+				array[index] = note;
+				return array;
+			}
+			if(array.length == 1) {
+				return Note.EMPTYARRAY;
 			}
-			notes = newnotes;
-			hiddennotes = newhiddennotes;
+			final Note[] result = new Note[array.length - 1];
+			System.arraycopy(array, 0, result, 0, index);
+			System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+			return result;
 		}
+		if(note == null) {
+			return array;
+		}
+		final Note[] result = new Note[array.length + 1];
+		System.arraycopy(array, 0, result, 0, index);
+		result[index] = note;
+		System.arraycopy(array, index, result, index + 1, array.length - index);
+		return result;
+	}
+
+	private long mask(long mask, int lane, Note note) {
+		if(lanes > MAX_PACKED_LANES) {
+			return mask;
+		}
+		return note != null ? mask | (1L << lane) : mask & ~(1L << lane);
 	}
 
 	/**
@@ -165,15 +265,17 @@ public class TimeLine {
 	}
 
 	public boolean existNote(int lane) {
-		return notes[lane] != null;
+		return get(notes, notemask, lane) != null;
 	}
 
 	public Note getNote(int lane) {
-		return notes[lane];
+		return get(notes, notemask, lane);
 	}
 
 	public void setNote(int lane, Note note) {
-		notes[lane] = note;
+		notes = put(notes, notemask, lane, note);
+		notemask = mask(notemask, lane, note);
+		modified();
 		if(note == null) {
 			return;
 		}
@@ -182,7 +284,9 @@ public class TimeLine {
 	}
 
 	public void setHiddenNote(int lane, Note note) {
-		hiddennotes[lane] = note;
+		hiddennotes = put(hiddennotes, hiddenmask, lane, note);
+		hiddenmask = mask(hiddenmask, lane, note);
+		modified();
 		if(note == null) {
 			return;
 		}
@@ -200,7 +304,7 @@ public class TimeLine {
 	}
 
 	public Note getHiddenNote(int lane) {
-		return hiddennotes[lane];
+		return get(hiddennotes, hiddenmask, lane);
 	}
 
 	public void addBackGroundNote(Note note) {
@@ -209,32 +313,64 @@ public class TimeLine {
 		}
 		note.setSection(section);
 		note.setMicroTime(time);
-		bgnotes = Arrays.copyOf(bgnotes, bgnotes.length + 1);
-		bgnotes[bgnotes.length - 1] = note;
+		if(bgcount == bgnotes.length) {
+			bgnotes = Arrays.copyOf(bgnotes, Math.max(4, bgcount * 2));
+		}
+		bgnotes[bgcount++] = note;
+		modified();
 	}
 
 	public void removeBackGroundNote(Note note) {
-		for(int i = 0;i < bgnotes.length;i++) {
+		for(int i = 0;i < bgcount;i++) {
 			if(bgnotes[i] == note) {
-				final Note[] newbg = new Note[bgnotes.length - 1];
-				for(int j = 0, index = 0;j < bgnotes.length;j++) {
+				final Note[] newbg = new Note[bgcount - 1];
+				for(int j = 0, index = 0;j < bgcount;j++) {
 					if(i != j) {
 						newbg[index] = bgnotes[j];
 						index++;
 					}
 				}
-				bgnotes = newbg;
+				bgnotes = newbg.length > 0 ? newbg : Note.EMPTYARRAY;
+				bgcount--;
+				modified();
 				break;
 			}
 		}
 	}
 
+	/**
+	 * BGMノートを取得する。切り詰められていない場合は使用中の範囲の複製を返す
+	 */
 	public Note[] getBackGroundNotes() {
-		return bgnotes;
+		return bgnotes.length == bgcount ? bgnotes : Arrays.copyOf(bgnotes, bgcount);
+	}
+
+	/**
+	 * 余分に確保したBGMノートの領域を解放する。BMSModel.setAllTimeLine()で呼び出されるため、
+	 * BMSModelに設定せずに使用するTimeLineのみ、BGMノートの追加後に呼び出す
+	 */
+	public void trimToSize() {
+		if(bgnotes.length != bgcount) {
+			bgnotes = bgcount > 0 ? Arrays.copyOf(bgnotes, bgcount) : Note.EMPTYARRAY;
+		}
+	}
+
+	/**
+	 * このTimeLineを保持するBMSModelを設定する。BMSModel.setAllTimeLine()で呼び出される
+	 */
+	void setModel(BMSModel model) {
+		this.model = model;
+	}
+
+	private void modified() {
+		if(model != null) {
+			model.invalidateStatistics();
+		}
 	}
 
 	public void setBPM(double bpm) {
 		this.bpm = bpm;
+		modified();
 	}
 
 	public double getBPM() {
@@ -266,6 +402,7 @@ public class TimeLine {
 	 */
 	public void setBGA(int bga) {
 		this.bga = bga;
+		modified();
 	}
 
 	/**
@@ -279,6 +416,7 @@ public class TimeLine {
 
 	public void setLayer(int layer) {
 		this.layer = layer;
+		modified();
 	}
 
 	public Layer[] getEventlayer() {
@@ -304,8 +442,8 @@ public class TimeLine {
 				n.setSection(section);					
 			}
 		}
-		for(Note n : bgnotes) {
-			n.setSection(section);
+		for(int i = 0;i < bgcount;i++) {
+			bgnotes[i].setSection(section);
 		}
 		this.section = section;
 	}